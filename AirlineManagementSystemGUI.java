@@ -1,30 +1,222 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableRowSorter;
 import java.awt.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+// Id Generator Class (Snowflake-style: 41-bit milliseconds, 10-bit node, 12-bit sequence)
+//
+// Ids are unique per node and strictly increasing. The hot path is a single CAS with no locks and no
+// SecureRandom; when a millisecond's 4096 sequence numbers are used up, the generator borrows the next
+// millisecond instead of waiting, and a clock that steps backwards simply keeps counting from the last id.
+class IdGenerator {
+    private static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long MAX_NODE = (1L << NODE_BITS) - 1;
+
+    // Node from -Did.node, otherwise the low bits of the process id
+    static final IdGenerator DEFAULT = new IdGenerator(
+            Long.getLong("id.node", ProcessHandle.current().pid() & MAX_NODE));
+
+    private final long node;
+    private final AtomicLong last = new AtomicLong();
+
+    public IdGenerator(long node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node must be between 0 and " + MAX_NODE + ": " + node);
+        }
+        this.node = node;
+    }
+
+    public long next() {
+        long nodeBits = node << SEQUENCE_BITS;
+        while (true) {
+            long previous = last.get();
+            long previousMillis = previous >>> (NODE_BITS + SEQUENCE_BITS);
+            long millis = System.currentTimeMillis() - EPOCH;
+            long id;
+            if (millis > previousMillis) {
+                id = (millis << (NODE_BITS + SEQUENCE_BITS)) | nodeBits;
+            } else if ((previous & SEQUENCE_MASK) == SEQUENCE_MASK) {
+                id = ((previousMillis + 1) << (NODE_BITS + SEQUENCE_BITS)) | nodeBits;
+            } else {
+                id = previous + 1;
+            }
+            if (last.compareAndSet(previous, id)) {
+                return id;
+            }
+        }
+    }
+
+    public static String format(long id) {
+        return Long.toString(id);
+    }
+
+    public static long parse(String id) {
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid id: " + id);
+        }
+    }
+}
+
+// Money Helpers (amounts are long cents everywhere; doubles never hold money)
+final class Money {
+    private Money() {
+    }
+
+    static long dollars(long dollars) {
+        return Math.multiplyExact(dollars, 100);
+    }
+
+    // "1234.50" style, also usable as a JSON number
+    static String toDecimal(long cents) {
+        StringBuilder sb = new StringBuilder(16);
+        if (cents < 0)
+            sb.append('-');
+        long fraction = Math.abs(cents % 100);
+        sb.append(Math.abs(cents / 100)).append('.');
+        if (fraction < 10)
+            sb.append('0');
+        return sb.append(fraction).toString();
+    }
+
+    static String format(long cents) {
+        return cents < 0 ? "-$" + toDecimal(-cents) : "$" + toDecimal(cents);
+    }
+}
 
 // Abstract Person Class
 abstract class Person {
     private String name;
-    private String id;
+    private long id;
 
     public Person(String name) {
+        this(name, IdGenerator.DEFAULT.next());
+    }
+
+    // Restores a person with an id issued earlier (e.g. from the booking archive)
+    protected Person(String name, long id) {
         this.name = name;
-        this.id = UUID.randomUUID().toString();
+        this.id = id;
     }
 
     public String getName() {
         return name;
     }
 
+    // Formatted on demand; the id itself is kept as a primitive long
     public String getId() {
+        return IdGenerator.format(id);
+    }
+
+    public long getIdValue() {
         return id;
     }
 
@@ -34,12 +226,18 @@ abstract class Person {
 // Passenger Class
 class Passenger extends Person {
     private List<Service> services;
-    private double serviceCost;
+    private long serviceCost; // Cents
 
     public Passenger(String name) {
         super(name);
         this.services = new ArrayList<>();
-        this.serviceCost = 0.0;
+        this.serviceCost = 0;
+    }
+
+    public Passenger(String name, long id) {
+        super(name, id);
+        this.services = new ArrayList<>();
+        this.serviceCost = 0;
     }
 
     public void addService(Service service) {
@@ -51,7 +249,7 @@ class Passenger extends Person {
         return services;
     }
 
-    public double getServiceCost() {
+    public long getServiceCost() {
         return serviceCost;
     }
 
@@ -59,16 +257,16 @@ class Passenger extends Person {
     public void displayInfo() {
         System.out.println("Passenger: " + getName() + ", ID: " + getId());
         System.out.println("Services: " + services);
-        System.out.println("Service Cost: $" + serviceCost);
+        System.out.println("Service Cost: " + Money.format(serviceCost));
     }
 }
 
 // Abstract Service Class
 abstract class Service {
     private String name;
-    private double price;
+    private long price; // Cents
 
-    public Service(String name, double price) {
+    public Service(String name, long price) {
         this.name = name;
         this.price = price;
     }
@@ -77,7 +275,7 @@ abstract class Service {
         return name;
     }
 
-    public double getPrice() {
+    public long getPrice() {
         return price;
     }
 
@@ -85,13 +283,13 @@ abstract class Service {
 
     @Override
     public String toString() {
-        return name + " ($" + price + ")";
+        return name + " (" + Money.format(price) + ")";
     }
 }
 
 // Meal Service
 class Meal extends Service {
-    public Meal(String mealType, double price) {
+    public Meal(String mealType, long price) {
         super(mealType + " Meal", price);
     }
 
@@ -104,7 +302,7 @@ class Meal extends Service {
 // Wi-Fi Service
 class WiFi extends Service {
     public WiFi() {
-        super("Wi-Fi", 15.0);
+        super("Wi-Fi", Money.dollars(15));
     }
 
     @Override
@@ -116,7 +314,7 @@ class WiFi extends Service {
 // Extra Baggage Service
 class ExtraBaggage extends Service {
     public ExtraBaggage() {
-        super("Extra Baggage", 30.0);
+        super("Extra Baggage", Money.dollars(30));
     }
 
     @Override
@@ -125,6 +323,89 @@ class ExtraBaggage extends Service {
     }
 }
 
+// Service Inventory Class (per-flight stock of meals, Wi-Fi seats and hold capacity for extra baggage)
+//
+// Each service has its own atomic counter, taken with a compare-and-set that never goes below zero, so
+// agents selling services on the same flight never wait for each other or for the flight's seat lock.
+// A booking reserves all of its services or none of them. Services without a stock (e.g. meal types
+// restored from old archives) are unlimited.
+class ServiceInventory {
+    // Stock as a share of the aircraft's seats
+    private static final String[] SERVICES = { "Vegetarian Meal", "Non-Vegetarian Meal", "Kids Meal", "Wi-Fi",
+            "Extra Baggage" };
+    private static final double[] SHARE_OF_SEATS = { 0.15, 0.50, 0.10, 0.40, 0.30 };
+
+    private final Map<String, Integer> capacity = new LinkedHashMap<>(); // Not modified after construction
+    private final Map<String, AtomicInteger> remaining = new HashMap<>();
+
+    public ServiceInventory(int seats) {
+        for (int i = 0; i < SERVICES.length; i++) {
+            int stock = (int) Math.ceil(seats * SHARE_OF_SEATS[i]);
+            capacity.put(SERVICES[i], stock);
+            remaining.put(SERVICES[i], new AtomicInteger(stock));
+        }
+    }
+
+    // Takes one of each service, or nothing when any of them is sold out
+    public boolean reserve(List<Service> services) {
+        for (int i = 0; i < services.size(); i++) {
+            if (!take(services.get(i).getName())) {
+                release(services.subList(0, i));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void release(List<Service> services) {
+        for (Service service : services) {
+            AtomicInteger counter = remaining.get(service.getName());
+            if (counter != null)
+                counter.incrementAndGet();
+        }
+    }
+
+    // Takes services regardless of stock, for bookings that already happened (restored from the archive)
+    void force(List<Service> services) {
+        for (Service service : services) {
+            AtomicInteger counter = remaining.get(service.getName());
+            if (counter != null)
+                counter.decrementAndGet();
+        }
+    }
+
+    private boolean take(String service) {
+        AtomicInteger counter = remaining.get(service);
+        if (counter == null)
+            return true;
+        while (true) {
+            int left = counter.get();
+            if (left <= 0)
+                return false;
+            if (counter.compareAndSet(left, left - 1))
+                return true;
+        }
+    }
+
+    public Set<String> getServiceNames() {
+        return capacity.keySet();
+    }
+
+    public int getCapacity(String service) {
+        Integer stock = capacity.get(service);
+        return stock == null ? Integer.MAX_VALUE : stock;
+    }
+
+    public int getRemaining(String service) {
+        AtomicInteger counter = remaining.get(service);
+        return counter == null ? Integer.MAX_VALUE : Math.max(0, counter.get());
+    }
+
+    public boolean isSoldOut(String service) {
+        return getRemaining(service) == 0;
+    }
+}
+
 // Flight Class
 class Flight {
     private String flightNumber;
@@ -132,12 +413,18 @@ class Flight {
     private String destination;
     private int totalSeats;
     private int availableSeats;
-    private double price;
+    private long price; // Cents
     private String dateTime;
     private List<Passenger> passengers;
     private boolean[] seatAvailability;
-
-    public Flight(String flightNumber, String origin, String destination, int totalSeats, double price,
+    private Passenger[] seatPassengers;
+    private volatile long version; // Bumped on every availability change, for cache validation
+    private final ServiceInventory serviceInventory;
+    private boolean closed; // Set while the flight is archived: no seat is taken or given back after that
+    private int held; // Seats taken for a payment that is still in progress; the flight is not closed meanwhile
+    private int firstFree; // No seat before this one is free, so group seat searches start here
+
+    public Flight(String flightNumber, String origin, String destination, int totalSeats, long price,
             String dateTime) {
         this.flightNumber = flightNumber;
         this.origin = origin;
@@ -148,14 +435,25 @@ class Flight {
         this.dateTime = dateTime;
         this.passengers = new ArrayList<>();
         this.seatAvailability = new boolean[totalSeats];
+        this.seatPassengers = new Passenger[totalSeats];
+        this.serviceInventory = new ServiceInventory(totalSeats);
     }
 
     public String getFlightNumber() {
         return flightNumber;
     }
 
-    public void setAvailableSeats(int availableSeats) {
+    public synchronized void setAvailableSeats(int availableSeats) {
         this.availableSeats = availableSeats;
+        version++;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public ServiceInventory getServiceInventory() {
+        return serviceInventory;
     }
 
     public String getOrigin() {
@@ -166,112 +464,4937 @@ class Flight {
         return destination;
     }
 
-    public int getAvailableSeats() {
+    public synchronized int getAvailableSeats() {
         return availableSeats;
     }
 
-    public double getPrice() {
+    // Stops bookings and cancellations, so the manifest can be archived as it stands. Returns false when the
+    // flight was already closed, or still holds seats for a payment in progress (the next archive run gets it).
+    public synchronized boolean close() {
+        if (closed || held > 0)
+            return false;
+        closed = true;
+        version++;
+        return true;
+    }
+
+    // Undoes close(), e.g. when the archive could not be written
+    public synchronized void reopen() {
+        closed = false;
+        version++;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public int getTotalSeats() {
+        return totalSeats;
+    }
+
+    public long getPrice() {
         return price;
     }
 
-    public String getDateTime() {
-        return dateTime;
+    public String getDateTime() {
+        return dateTime;
+    }
+
+    public List<Passenger> getPassengers() {
+        return passengers;
+    }
+
+    public boolean[] getSeatAvailability() {
+        return seatAvailability;
+    }
+
+    public synchronized Passenger getPassengerAt(int seatIndex) {
+        if (seatIndex < 0 || seatIndex >= totalSeats) {
+            return null;
+        }
+        return seatPassengers[seatIndex];
+    }
+
+    // Copy of the seat map taken under the flight lock, safe to hand to other threads
+    public synchronized boolean[] snapshotSeatAvailability() {
+        return seatAvailability.clone();
+    }
+
+    // Reserves the passenger's services together with the seat: false when either is unavailable, in which
+    // case neither is taken. Services are reserved outside the flight lock.
+    public boolean bookSeat(Passenger passenger, int seatIndex) {
+        if (!serviceInventory.reserve(passenger.getServices())) {
+            return false;
+        }
+        if (!takeSeat(passenger, seatIndex, false)) {
+            serviceInventory.release(passenger.getServices());
+            return false;
+        }
+        return true;
+    }
+
+    // Like bookSeat, but the seat stays held until confirm() or releaseSeat(), so it can be paid for without
+    // the flight lock
+    public boolean holdSeat(Passenger passenger, int seatIndex) {
+        if (!serviceInventory.reserve(passenger.getServices())) {
+            return false;
+        }
+        if (!takeSeat(passenger, seatIndex, true)) {
+            serviceInventory.release(passenger.getServices());
+            return false;
+        }
+        return true;
+    }
+
+    // Books a seat whose services were already sold (restored from the archive), without stock checks
+    boolean restoreSeat(Passenger passenger, int seatIndex) {
+        serviceInventory.force(passenger.getServices());
+        return takeSeat(passenger, seatIndex, false);
+    }
+
+    private synchronized boolean takeSeat(Passenger passenger, int seatIndex, boolean hold) {
+        if (closed || seatIndex < 0 || seatIndex >= totalSeats || seatAvailability[seatIndex]) {
+            return false;
+        }
+        if (hold) {
+            held++;
+        }
+        passengers.add(passenger);
+        seatAvailability[seatIndex] = true;
+        seatPassengers[seatIndex] = passenger;
+        availableSeats--;
+        skipTakenSeats();
+        version++;
+        return true;
+    }
+
+    private void skipTakenSeats() {
+        while (firstFree < totalSeats && seatAvailability[firstFree]) {
+            firstFree++;
+        }
+    }
+
+    // Holds seats for every passenger of the group, with their services, or for none of them. Returns the seat
+    // indices (one per passenger, in order), or null when the flight does not have enough free seats or
+    // services. The seats stay held until confirm() or releaseGroup().
+    public int[] holdGroup(List<Passenger> group) {
+        List<Service> services = new ArrayList<>();
+        for (Passenger passenger : group) {
+            services.addAll(passenger.getServices());
+        }
+        if (!serviceInventory.reserve(services)) {
+            return null;
+        }
+        int[] seats = takeGroupSeats(group);
+        if (seats == null) {
+            serviceInventory.release(services);
+        }
+        return seats;
+    }
+
+    private synchronized int[] takeGroupSeats(List<Passenger> group) {
+        int[] seats = closed ? null : findGroupSeats(group.size());
+        if (seats == null) {
+            return null;
+        }
+        for (int i = 0; i < seats.length; i++) {
+            passengers.add(group.get(i));
+            seatAvailability[seats[i]] = true;
+            seatPassengers[seats[i]] = group.get(i);
+        }
+        availableSeats -= seats.length;
+        held += seats.length;
+        skipTakenSeats();
+        version++;
+        return seats;
+    }
+
+    // Turns held seats into bookings once they are paid for
+    public synchronized void confirm(int seats) {
+        held -= seats;
+    }
+
+    // Undoes holdSeat, e.g. when the payment is declined
+    public synchronized void releaseSeat(Passenger passenger, int seatIndex) {
+        releaseGroup(Collections.singletonList(passenger), new int[] { seatIndex });
+    }
+
+    // Undoes holdGroup, e.g. when the group payment is declined
+    public synchronized void releaseGroup(List<Passenger> group, int[] seats) {
+        for (int i = 0; i < seats.length; i++) {
+            if (seatPassengers[seats[i]] == group.get(i)) {
+                seatAvailability[seats[i]] = false;
+                seatPassengers[seats[i]] = null;
+                availableSeats++;
+                firstFree = Math.min(firstFree, seats[i]);
+                serviceInventory.release(group.get(i).getServices());
+            }
+        }
+        passengers.removeAll(group);
+        held -= seats.length;
+        version++;
+    }
+
+    // Keeps groups together: a run within one row (6 seats, as in the seat map) for small groups,
+    // otherwise the free seats spanning the fewest seat positions
+    private int[] findGroupSeats(int count) {
+        if (count <= 0 || count > availableSeats) {
+            return null;
+        }
+        int cols = 6;
+        if (count <= cols) {
+            for (int rowStart = firstFree - firstFree % cols; rowStart < totalSeats; rowStart += cols) {
+                int rowEnd = Math.min(rowStart + cols, totalSeats);
+                int run = 0;
+                for (int seat = rowStart; seat < rowEnd; seat++) {
+                    run = seatAvailability[seat] ? 0 : run + 1;
+                    if (run == count) {
+                        return consecutive(seat - count + 1, count);
+                    }
+                }
+            }
+        }
+
+        int[] free = new int[availableSeats];
+        int n = 0;
+        for (int seat = firstFree; seat < totalSeats; seat++) {
+            if (!seatAvailability[seat])
+                free[n++] = seat;
+        }
+        int best = 0;
+        for (int i = 1; i + count <= n; i++) {
+            if (free[i + count - 1] - free[i] < free[best + count - 1] - free[best])
+                best = i;
+        }
+        return Arrays.copyOfRange(free, best, best + count);
+    }
+
+    private static int[] consecutive(int first, int count) {
+        int[] seats = new int[count];
+        for (int i = 0; i < count; i++)
+            seats[i] = first + i;
+        return seats;
+    }
+
+    public synchronized boolean cancelSeat(Passenger passenger, int seatIndex) {
+        if (closed || seatIndex < 0 || seatIndex >= totalSeats || seatPassengers[seatIndex] != passenger) {
+            return false;
+        }
+        passengers.remove(passenger);
+        seatAvailability[seatIndex] = false; // Mark seat as available
+        seatPassengers[seatIndex] = null;
+        availableSeats++;
+        firstFree = Math.min(firstFree, seatIndex);
+        version++;
+        serviceInventory.release(passenger.getServices());
+        return true;
+    }
+}
+
+// Booking Class (a passenger holding a seat on a flight)
+class Booking {
+    private final Flight flight;
+    private final Passenger passenger;
+    private final int seat;
+    private final long paid; // Cents recorded in the ledger for this booking, refunded on cancellation
+
+    public Booking(Flight flight, Passenger passenger, int seat) {
+        this(flight, passenger, seat, 0);
+    }
+
+    public Booking(Flight flight, Passenger passenger, int seat, long paid) {
+        this.flight = flight;
+        this.passenger = passenger;
+        this.seat = seat;
+        this.paid = paid;
+    }
+
+    public Flight getFlight() {
+        return flight;
+    }
+
+    public Passenger getPassenger() {
+        return passenger;
+    }
+
+    public int getSeat() {
+        return seat;
+    }
+
+    public long getPaid() {
+        return paid;
+    }
+}
+
+// Search Index Class (incremental prefix and fuzzy search over the words of each document)
+//
+// Words live in a concurrent sorted map, so a prefix query is a range scan over it (the same lookups a
+// trie gives, without a node per character). Fuzzy queries go through a trigram index over the distinct
+// words and are verified with an edit distance of 1 (2 for words longer than 5 characters).
+class SearchIndex<T> {
+    private static final int MAX_TRIGRAM_FANOUT = 20_000;
+
+    private final Function<T, String> text;
+    private final ConcurrentSkipListMap<String, Set<T>> postings = new ConcurrentSkipListMap<>();
+    private final Map<String, Set<String>> trigrams = new ConcurrentHashMap<>(); // Changed under its own lock
+
+    public SearchIndex(Function<T, String> text) {
+        this.text = text;
+    }
+
+    // Words are created and dropped, with their trigrams, under the trigrams lock. A document is added to a
+    // posting set under the set's lock, and only while the set is still the word's, so an add never lands
+    // in a set that remove() just dropped.
+    public void add(T document) {
+        for (String word : words(text.apply(document))) {
+            addToWord(word, Collections.singletonList(document));
+        }
+    }
+
+    // Adds documents that share words (a group of passengers with one surname) with one lookup and one lock
+    // per distinct word rather than per document
+    public void addAll(List<T> documents) {
+        Map<String, List<T>> byWord = new LinkedHashMap<>();
+        for (T document : documents) {
+            for (String word : words(text.apply(document))) {
+                byWord.computeIfAbsent(word, k -> new ArrayList<>()).add(document);
+            }
+        }
+        for (Map.Entry<String, List<T>> entry : byWord.entrySet()) {
+            addToWord(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void addToWord(String word, List<T> added) {
+        while (true) {
+            Set<T> documents = postings.get(word);
+            if (documents == null) {
+                synchronized (trigrams) {
+                    documents = postings.get(word);
+                    if (documents == null) {
+                        documents = ConcurrentHashMap.newKeySet();
+                        postings.put(word, documents);
+                        for (String trigram : trigramsOf(word)) {
+                            trigrams.computeIfAbsent(trigram, k -> ConcurrentHashMap.newKeySet()).add(word);
+                        }
+                    }
+                }
+            }
+            synchronized (documents) {
+                if (postings.get(word) == documents) {
+                    documents.addAll(added);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Drops words (and trigrams) once their last document goes
+    public void remove(T document) {
+        for (String word : words(text.apply(document))) {
+            Set<T> documents = postings.get(word);
+            if (documents == null)
+                continue;
+            boolean empty;
+            synchronized (documents) {
+                documents.remove(document);
+                empty = documents.isEmpty();
+            }
+            if (empty) {
+                synchronized (trigrams) {
+                    synchronized (documents) {
+                        if (documents.isEmpty() && postings.remove(word, documents))
+                            dropTrigrams(word);
+                    }
+                }
+            }
+        }
+    }
+
+    private void dropTrigrams(String word) {
+        for (String trigram : trigramsOf(word)) {
+            Set<String> words = trigrams.get(trigram);
+            if (words != null && words.remove(word) && words.isEmpty())
+                trigrams.remove(trigram);
+        }
+    }
+
+    // Documents matching every word of the query; every query word may be a prefix (type-ahead)
+    public List<T> search(String query, int limit, boolean fuzzy) {
+        return search(query, limit, fuzzy, false, () -> false);
+    }
+
+    // Like a fuzzy search, except that a query word is matched fuzzily only when no indexed word starts with
+    // it (a typo), so the keystrokes that already hit skip the trigram lookups. Returns what it has found so
+    // far once cancelled says so.
+    public List<T> searchPrefixOrFuzzy(String query, int limit, BooleanSupplier cancelled) {
+        return search(query, limit, true, true, cancelled);
+    }
+
+    private List<T> search(String query, int limit, boolean fuzzy, boolean fuzzyOnlyWithoutPrefix,
+            BooleanSupplier cancelled) {
+        List<String> queryWords = words(query);
+        List<T> result = new ArrayList<>();
+        if (queryWords.isEmpty() || limit <= 0)
+            return result;
+
+        // Drive the search from the most selective word and verify the others per document
+        List<QueryWord> matchers = new ArrayList<>();
+        QueryWord driver = null;
+        for (String queryWord : queryWords) {
+            boolean matchFuzzily = fuzzy && !(fuzzyOnlyWithoutPrefix && hasPrefix(queryWord));
+            QueryWord matcher = new QueryWord(queryWord,
+                    matchFuzzily ? fuzzyWords(queryWord) : Collections.emptySet());
+            matchers.add(matcher);
+            long best = driver == null ? Long.MAX_VALUE : driver.estimate;
+            if (matcher.estimate(best) < best)
+                driver = matcher;
+        }
+
+        Set<T> seen = new HashSet<>();
+        Iterator<String> words = driver.words();
+        while (words.hasNext()) {
+            for (T document : postings.getOrDefault(words.next(), Collections.emptySet())) {
+                if ((seen.size() & 1023) == 0 && cancelled.getAsBoolean())
+                    return result;
+                if (seen.add(document) && (matchers.size() == 1 || matchesAll(document, matchers, driver))) {
+                    result.add(document);
+                    if (result.size() >= limit)
+                        return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean hasPrefix(String prefix) {
+        String word = postings.ceilingKey(prefix);
+        return word != null && word.startsWith(prefix);
+    }
+
+    private boolean matchesAll(T document, List<QueryWord> matchers, QueryWord driver) {
+        List<String> documentWords = null;
+        for (QueryWord matcher : matchers) {
+            if (matcher == driver)
+                continue;
+            List<Set<T>> postingSets = matcher.postingSets();
+            if (postingSets != null) {
+                if (postingSets.stream().noneMatch(documents -> documents.contains(document)))
+                    return false;
+            } else {
+                if (documentWords == null)
+                    documentWords = words(text.apply(document));
+                if (documentWords.stream().noneMatch(matcher::matches))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // A query word: every indexed word it prefixes, plus its fuzzy matches
+    private class QueryWord {
+        final String prefix;
+        final Set<String> fuzzy;
+        long estimate = Long.MAX_VALUE;
+        List<Set<T>> postingSets;
+        boolean postingSetsResolved;
+
+        QueryWord(String prefix, Set<String> fuzzy) {
+            this.prefix = prefix;
+            this.fuzzy = fuzzy;
+        }
+
+        boolean matches(String word) {
+            return word.startsWith(prefix) || fuzzy.contains(word);
+        }
+
+        // The posting sets of all matching words when there are few of them (membership checks are then
+        // cheaper than re-tokenizing each document), otherwise null
+        List<Set<T>> postingSets() {
+            if (!postingSetsResolved) {
+                postingSetsResolved = true;
+                List<Set<T>> sets = new ArrayList<>();
+                Iterator<String> words = words();
+                while (words.hasNext() && sets != null) {
+                    Set<T> documents = postings.get(words.next());
+                    if (documents != null)
+                        sets.add(documents);
+                    if (sets.size() > 16)
+                        sets = null;
+                }
+                postingSets = sets;
+            }
+            return postingSets;
+        }
+
+        Iterator<String> words() {
+            Iterator<String> prefixed = postings.subMap(prefix, true, prefix + Character.MAX_VALUE, true)
+                    .keySet().iterator();
+            Iterator<String> extra = fuzzy.iterator();
+            return new Iterator<String>() {
+                public boolean hasNext() {
+                    return prefixed.hasNext() || extra.hasNext();
+                }
+
+                public String next() {
+                    return prefixed.hasNext() ? prefixed.next() : extra.next();
+                }
+            };
+        }
+
+        // Number of postings behind this word, counted only up to the current best so it stays cheap
+        long estimate(long bound) {
+            long size = 0;
+            Iterator<String> words = words();
+            while (words.hasNext() && size < bound) {
+                Set<T> documents = postings.get(words.next());
+                size += documents == null ? 0 : documents.size();
+            }
+            estimate = size;
+            return size;
+        }
+    }
+
+    // Indexed words within the edit budget of the query word (or of their own prefix of the same length).
+    // Only alphabetic words of three or more characters are matched fuzzily; trigrams shared by too many
+    // words to be selective are skipped.
+    private Set<String> fuzzyWords(String queryWord) {
+        Set<String> words = new HashSet<>();
+        if (queryWord.length() < 3 || !queryWord.chars().allMatch(Character::isLetter))
+            return words;
+        int maxEdits = queryWord.length() > 5 ? 2 : 1;
+        Set<String> candidates = new HashSet<>();
+        for (String trigram : trigramsOf(queryWord)) {
+            Set<String> sharing = trigrams.getOrDefault(trigram, Collections.emptySet());
+            if (sharing.size() <= MAX_TRIGRAM_FANOUT)
+                candidates.addAll(sharing);
+        }
+        for (String candidate : candidates) {
+            if (candidate.startsWith(queryWord))
+                continue; // Already matched as a prefix
+            String candidatePrefix = candidate.substring(0, Math.min(candidate.length(), queryWord.length()));
+            if (editDistance(queryWord, candidate, maxEdits) <= maxEdits
+                    || editDistance(queryWord, candidatePrefix, maxEdits) <= maxEdits) {
+                words.add(candidate);
+            }
+        }
+        return words;
+    }
+
+    static List<String> words(String value) {
+        List<String> words = new ArrayList<>(4);
+        if (value == null)
+            return words;
+        int start = -1;
+        for (int i = 0; i <= value.length(); i++) {
+            boolean letter = i < value.length() && Character.isLetterOrDigit(value.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                words.add(value.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static List<String> trigramsOf(String word) {
+        String padded = "$" + word + "$";
+        List<String> result = new ArrayList<>(padded.length());
+        for (int i = 0; i + 3 <= padded.length(); i++)
+            result.add(padded.substring(i, i + 3));
+        return result;
+    }
+
+    // Edit distance counting a swap of adjacent characters as one edit (optimal string alignment),
+    // giving up early once every cell in a row exceeds max
+    static int editDistance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max)
+            return max + 1;
+        int[] beforePrevious = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++)
+            previous[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1))
+                    current[j] = Math.min(current[j], beforePrevious[j - 2] + 1);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max)
+                return max + 1;
+            int[] swap = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+}
+
+// Airline Class
+class Airline {
+    private String name;
+    private List<Flight> flights;
+    private Map<String, Flight> flightsByNumber;
+    private AtomicLong flightSequence;
+    private AtomicLong scheduleVersion; // Bumped whenever flights are added or removed
+    private Map<Passenger, Booking> bookings;
+    private AtomicInteger totalPassengers;
+    private SearchIndex<Booking> passengerIndex;
+    private SearchIndex<Flight> flightIndex;
+    private RevenueLedger ledger;
+    private volatile ChangeFeed changeFeed; // Null when no change feed is configured
+    private final List<Consumer<Set<Flight>>> archiveListeners = new CopyOnWriteArrayList<>();
+
+    public Airline(String name) {
+        this(name, new RevenueLedger());
+    }
+
+    public Airline(String name, RevenueLedger ledger) {
+        this.name = name;
+        this.ledger = ledger;
+        this.flights = Collections.synchronizedList(new ArrayList<>());
+        this.flightsByNumber = new ConcurrentHashMap<>();
+        this.flightSequence = new AtomicLong(1000);
+        this.scheduleVersion = new AtomicLong();
+        this.bookings = new ConcurrentHashMap<>();
+        this.totalPassengers = new AtomicInteger();
+        this.passengerIndex = new SearchIndex<>(booking -> booking.getPassenger().getName());
+        this.flightIndex = new SearchIndex<>(
+                flight -> flight.getFlightNumber() + " " + flight.getOrigin() + " " + flight.getDestination());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public RevenueLedger getLedger() {
+        return ledger;
+    }
+
+    // Changes made from now on are published to the feed
+    public void setChangeFeed(ChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
+    // Called with the flights archiveDeparted() dropped, after they are gone from the airline, so that
+    // components holding on to them can let go
+    public void addArchiveListener(Consumer<Set<Flight>> listener) {
+        archiveListeners.add(listener);
+    }
+
+    // Changes are published to the feed under the flight lock, so the feed sees a flight's changes in the
+    // order they happened: added first, then its bookings and cancellations, archived last
+    public void addFlight(Flight flight) {
+        synchronized (flight) {
+            if (flightsByNumber.putIfAbsent(flight.getFlightNumber(), flight) != null) {
+                throw new IllegalArgumentException("Duplicate flight number: " + flight.getFlightNumber());
+            }
+            flights.add(flight);
+            flightIndex.add(flight);
+            scheduleVersion.incrementAndGet();
+            ChangeFeed feed = changeFeed;
+            if (feed != null) {
+                feed.flightAdded(flight);
+            }
+        }
+    }
+
+    public long getScheduleVersion() {
+        return scheduleVersion.get();
+    }
+
+    // Reserves count consecutive flight indices for FleetGenerator.flightNumber and returns the first
+    public long reserveFlightNumbers(long count) {
+        return flightSequence.getAndAdd(count);
+    }
+
+    // Callers iterating this list from several threads must synchronize on it
+    public List<Flight> getFlights() {
+        return flights;
+    }
+
+    public Flight findFlight(String flightNumber) {
+        return flightNumber == null ? null : flightsByNumber.get(flightNumber);
+    }
+
+    // Null or empty criteria match everything; date matches the "yyyy-MM-dd" prefix of the departure time
+    public List<Flight> searchFlights(String origin, String destination, String date) {
+        List<Flight> result = new ArrayList<>();
+        synchronized (flights) {
+            for (Flight flight : flights) {
+                if (matches(origin, flight.getOrigin()) && matches(destination, flight.getDestination())
+                        && (date == null || date.isEmpty() || flight.getDateTime().startsWith(date))) {
+                    result.add(flight);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(String criterion, String value) {
+        return criterion == null || criterion.isEmpty() || criterion.equalsIgnoreCase(value);
+    }
+
+    // Type-ahead over passenger names (prefix, optionally fuzzy)
+    public List<Booking> searchPassengers(String query, int limit, boolean fuzzy) {
+        return passengerIndex.search(query, limit, fuzzy);
+    }
+
+    // Every matching booking for filtering the passenger table, fuzzy only for words that match nothing as a
+    // prefix; stops when cancelled says so
+    public List<Booking> filterPassengers(String query, BooleanSupplier cancelled) {
+        return passengerIndex.searchPrefixOrFuzzy(query, Integer.MAX_VALUE, cancelled);
+    }
+
+    // Type-ahead over flight numbers, origins and destinations
+    public List<Flight> searchFlightsByText(String query, int limit, boolean fuzzy) {
+        return flightIndex.search(query, limit, fuzzy);
+    }
+
+    public Booking findBooking(Passenger passenger) {
+        return bookings.get(passenger);
+    }
+
+    // Books a seat without taking money (generated or restored bookings)
+    public boolean bookSeat(Flight flight, Passenger passenger, int seatIndex) {
+        return bookSeat(flight, passenger, seatIndex, 0);
+    }
+
+    // Books a seat that was paid for; the payment goes into the ledger once the seat is held. The flight lock
+    // is held until the booking is registered, so archiving (which closes the flight under it) sees all of
+    // the booking or none of it.
+    public boolean bookSeat(Flight flight, Passenger passenger, int seatIndex, long paid) {
+        synchronized (flight) {
+            if (!flight.bookSeat(passenger, seatIndex)) {
+                return false;
+            }
+            if (paid > 0) {
+                ledger.payment(flight.getFlightNumber(), passenger.getIdValue(), paid);
+            }
+            booked(new Booking(flight, passenger, seatIndex, paid));
+        }
+        return true;
+    }
+
+    // Registers a seat taken with Flight.holdSeat once it has been paid for. The flight is still open: close()
+    // waits for held seats.
+    public void bookHeldSeat(Flight flight, Passenger passenger, int seatIndex, long paid) {
+        synchronized (flight) {
+            flight.confirm(1);
+            if (paid > 0) {
+                ledger.payment(flight.getFlightNumber(), passenger.getIdValue(), paid);
+            }
+            booked(new Booking(flight, passenger, seatIndex, paid));
+        }
+    }
+
+    private void booked(Booking booking) {
+        totalPassengers.incrementAndGet();
+        bookings.put(booking.getPassenger(), booking);
+        passengerIndex.add(booking);
+        ChangeFeed feed = changeFeed;
+        if (feed != null) {
+            feed.booked(booking);
+        }
+    }
+
+    // All-or-nothing group booking with a single payment for the whole group. Passengers carry their
+    // services already. Returns the booked seats, or null when seats or payment are unavailable, in which
+    // case nothing is booked. The seats are held while the payment runs, without the flight lock; a flight
+    // with held seats is not closed, so the group is registered on a live flight.
+    public int[] bookGroup(Flight flight, List<Passenger> group, String paymentMethod) {
+        int[] seats = flight.holdGroup(group);
+        if (seats == null) {
+            return null;
+        }
+        Payment payment = new Payment(paymentMethod, groupCost(flight, group));
+        if (!payment.processPayment()) {
+            flight.releaseGroup(group, seats);
+            return null;
+        }
+        // One ledger entry per passenger, so that each booking can be refunded on its own, but appended and
+        // indexed as one batch
+        long[] passengerIds = new long[seats.length];
+        long[] paid = new long[seats.length];
+        List<Booking> booked = new ArrayList<>(seats.length);
+        for (int i = 0; i < seats.length; i++) {
+            Passenger passenger = group.get(i);
+            passengerIds[i] = passenger.getIdValue();
+            paid[i] = flight.getPrice() + passenger.getServiceCost();
+            booked.add(new Booking(flight, passenger, seats[i], paid[i]));
+        }
+        synchronized (flight) { // Still open: close() waits for the held seats to be confirmed or released
+            flight.confirm(seats.length);
+            ledger.payments(flight.getFlightNumber(), passengerIds, paid);
+            totalPassengers.addAndGet(booked.size());
+            for (Booking booking : booked) {
+                bookings.put(booking.getPassenger(), booking);
+            }
+            passengerIndex.addAll(booked);
+            ChangeFeed feed = changeFeed;
+            if (feed != null) {
+                for (Booking booking : booked) {
+                    feed.booked(booking);
+                }
+            }
+        }
+        return seats;
+    }
+
+    public static long groupCost(Flight flight, List<Passenger> group) {
+        long total = flight.getPrice() * group.size();
+        for (Passenger passenger : group) {
+            total += passenger.getServiceCost();
+        }
+        return total;
+    }
+
+    // Refused for flights that are no longer live (archived or never added)
+    public boolean cancelBooking(Flight flight, Passenger passenger, int seatIndex) {
+        synchronized (flight) {
+            if (flightsByNumber.get(flight.getFlightNumber()) != flight || !flight.cancelSeat(passenger, seatIndex)) {
+                return false;
+            }
+            Booking booking = bookings.remove(passenger);
+            long refund = 0;
+            if (booking != null) {
+                totalPassengers.decrementAndGet();
+                passengerIndex.remove(booking);
+                refund = booking.getPaid();
+                if (refund > 0) {
+                    ledger.refund(flight.getFlightNumber(), passenger.getIdValue(), refund); // Full refund
+                }
+            }
+            ChangeFeed feed = changeFeed;
+            if (feed != null) {
+                feed.cancelled(flight, passenger, seatIndex, refund);
+            }
+        }
+        return true;
+    }
+
+    // Moves every flight that departed before now, with its manifest, into the archive and drops it from
+    // live memory. Each flight is closed before its segment is written, so no booking or cancellation can
+    // slip in between; if the write fails the flights are reopened. Returns the number of flights archived.
+    public int archiveDeparted(LocalDateTime now, BookingArchive archive) throws IOException {
+        Map<LocalDate, List<Flight>> departed = new TreeMap<>();
+        synchronized (flights) {
+            for (Flight flight : flights) {
+                LocalDateTime departure = BookingArchive.departureOf(flight);
+                if (departure != null && departure.isBefore(now))
+                    departed.computeIfAbsent(departure.toLocalDate(), date -> new ArrayList<>()).add(flight);
+            }
+        }
+        int archived = 0;
+        for (Map.Entry<LocalDate, List<Flight>> partition : departed.entrySet()) {
+            List<Flight> closed = new ArrayList<>();
+            for (Flight flight : partition.getValue()) {
+                if (flight.close()) // Otherwise another archiver has it, or a payment holds seats on it
+                    closed.add(flight);
+            }
+            if (closed.isEmpty())
+                continue;
+            try {
+                archive.writeSegment(partition.getKey(), closed);
+            } catch (IOException | RuntimeException ex) {
+                closed.forEach(Flight::reopen);
+                throw ex;
+            }
+            removeFlights(closed);
+            archived += closed.size();
+        }
+        return archived;
+    }
+
+    private void removeFlights(List<Flight> removed) {
+        Set<Flight> removedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        removedSet.addAll(removed);
+        synchronized (flights) {
+            flights.removeIf(removedSet::contains); // One pass instead of a list removal per flight
+        }
+        scheduleVersion.incrementAndGet();
+        ChangeFeed feed = changeFeed;
+        for (Flight flight : removed) {
+            if (feed != null) {
+                synchronized (flight) { // Closed, so nothing can follow this change
+                    feed.flightArchived(flight);
+                }
+            }
+            flightsByNumber.remove(flight.getFlightNumber());
+            flightIndex.remove(flight);
+            for (Passenger passenger : new ArrayList<>(flight.getPassengers())) {
+                Booking booking = bookings.remove(passenger);
+                if (booking != null) {
+                    passengerIndex.remove(booking);
+                    totalPassengers.decrementAndGet();
+                }
+            }
+        }
+        for (Consumer<Set<Flight>> listener : archiveListeners) {
+            listener.accept(removedSet);
+        }
+    }
+
+    // Kept as a running count of bookings made through the airline rather than summed over all flights
+    public int getTotalPassengers() {
+        return totalPassengers.get();
+    }
+}
+
+// Payment Class
+class Payment {
+    private String method;
+    private long amount; // Cents
+
+    public Payment(String method, long amount) {
+        this.method = method;
+        this.amount = amount;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public boolean processPayment() {
+        // Simulate payment processing
+        return true; // Always succeed for this demo
+    }
+}
+
+// Revenue Ledger Class (append-only record of every payment and refund, in long cents)
+//
+// Entries are stored column-wise in fixed-size chunks of primitive arrays (time, signed amount, passenger
+// id, flight id), so reconciliation scans over millions of entries read only the columns they need and
+// never box. Appends are serialized and stamped with non-decreasing times, which lets time-range queries
+// binary-search their first entry. Readers work on the published size without locking: an entry is never
+// modified once written. Per-flight and per-day (UTC) totals are kept up to date on every append. With a
+// journal file, every entry is also appended to disk; the journal is replayed by load() or on first use,
+// so opening a ledger costs nothing at startup.
+class RevenueLedger {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private long[][] times = new long[0][];
+    private long[][] amounts = new long[0][]; // Payments positive, refunds negative
+    private long[][] passengers = new long[0][];
+    private int[][] flights = new int[0][];
+    private volatile int size;
+    private long lastMillis;
+
+    private final List<String> flightNumbers = new ArrayList<>(); // Flight id -> flight number
+    private final Map<String, Integer> flightIds = new HashMap<>();
+    private final List<Totals> flightTotals = new ArrayList<>(); // By flight id
+    private final TreeMap<Long, Totals> dayTotals = new TreeMap<>(); // By epoch day
+    private final Totals totals = new Totals();
+    private final Path journalFile;
+    private DataOutputStream journal;
+    private volatile boolean loaded;
+
+    // Running sums for one flight, one day or the whole ledger
+    static class Totals {
+        long payments;
+        long refunds;
+        int paymentCount;
+        int refundCount;
+
+        void add(long amount) {
+            if (amount >= 0) {
+                payments += amount;
+                paymentCount++;
+            } else {
+                refunds -= amount;
+                refundCount++;
+            }
+        }
+
+        Totals copy() {
+            Totals copy = new Totals();
+            copy.payments = payments;
+            copy.refunds = refunds;
+            copy.paymentCount = paymentCount;
+            copy.refundCount = refundCount;
+            return copy;
+        }
+
+        public long getPayments() {
+            return payments;
+        }
+
+        public long getRefunds() {
+            return refunds;
+        }
+
+        public long getNet() {
+            return payments - refunds;
+        }
+
+        public int getPaymentCount() {
+            return paymentCount;
+        }
+
+        public int getRefundCount() {
+            return refundCount;
+        }
+    }
+
+    interface EntryVisitor {
+        void visit(int entry, long millis, long amount, long passengerId, int flightId);
+    }
+
+    // Journaled to -Dledger.file when it is set, otherwise in memory only
+    static RevenueLedger open() {
+        String file = System.getProperty("ledger.file");
+        return file == null ? new RevenueLedger() : new RevenueLedger(Paths.get(file));
+    }
+
+    public RevenueLedger() {
+        this.journalFile = null;
+        this.loaded = true;
+    }
+
+    public RevenueLedger(Path journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    // Replays the journal and opens it for appending; does nothing once loaded. Every other method loads
+    // first, so entries recorded before an explicit load still land after the replayed ones.
+    public void load() {
+        if (loaded)
+            return;
+        synchronized (this) {
+            if (loaded)
+                return;
+            try {
+                replay();
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Cannot load ledger " + journalFile, ex);
+            }
+            loaded = true;
+        }
+    }
+
+    // Drops a torn last record, left by a crash in the middle of a write
+    private void replay() throws IOException {
+        long valid = 0;
+        if (Files.exists(journalFile)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(journalFile), 64 * 1024))) {
+                while (true) {
+                    long millis = in.readLong();
+                    long amount = in.readLong();
+                    long passengerId = in.readLong();
+                    byte[] flightNumber = new byte[in.readUnsignedShort()];
+                    in.readFully(flightNumber);
+                    append(new String(flightNumber, StandardCharsets.UTF_8), passengerId, amount, millis);
+                    valid += 26 + flightNumber.length;
+                }
+            } catch (EOFException ex) {
+                // End of the journal, possibly in the middle of a record that was never completed
+            }
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        this.journal = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journalFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+    }
+
+    public int payment(String flightNumber, long passengerId, long amount) {
+        return record(flightNumber, passengerId, amount);
+    }
+
+    public int refund(String flightNumber, long passengerId, long amount) {
+        return record(flightNumber, passengerId, -amount);
+    }
+
+    // One payment per passenger on the same flight (a group), journaled with a single flush. Returns the
+    // entry number of the first.
+    public synchronized int payments(String flightNumber, long[] passengerIds, long[] amounts) {
+        load();
+        for (long amount : amounts) {
+            if (amount <= 0)
+                throw new IllegalArgumentException("Payments must be positive");
+        }
+        long millis = Math.max(System.currentTimeMillis(), lastMillis);
+        if (journal != null) {
+            byte[] bytes = flightNumber.getBytes(StandardCharsets.UTF_8);
+            try {
+                for (int i = 0; i < amounts.length; i++) {
+                    writeJournal(millis, amounts[i], passengerIds[i], bytes);
+                }
+                journal.flush();
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Ledger journal write failed", ex);
+            }
+        }
+        int first = size;
+        for (int i = 0; i < amounts.length; i++) {
+            append(flightNumber, passengerIds[i], amounts[i], millis);
+        }
+        return first;
+    }
+
+    // Returns the entry number
+    private synchronized int record(String flightNumber, long passengerId, long amount) {
+        load();
+        if (amount == 0)
+            throw new IllegalArgumentException("Ledger entries must move money");
+        long millis = Math.max(System.currentTimeMillis(), lastMillis);
+        if (journal != null) {
+            try {
+                writeJournal(millis, amount, passengerId, flightNumber.getBytes(StandardCharsets.UTF_8));
+                journal.flush();
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Ledger journal write failed", ex);
+            }
+        }
+        return append(flightNumber, passengerId, amount, millis);
+    }
+
+    private void writeJournal(long millis, long amount, long passengerId, byte[] flightNumber) throws IOException {
+        journal.writeLong(millis);
+        journal.writeLong(amount);
+        journal.writeLong(passengerId);
+        journal.writeShort(flightNumber.length);
+        journal.write(flightNumber);
+    }
+
+    private synchronized int append(String flightNumber, long passengerId, long amount, long millis) {
+        int entry = size;
+        int chunk = entry >>> CHUNK_BITS;
+        if (chunk == times.length) {
+            times = Arrays.copyOf(times, chunk + 1);
+            amounts = Arrays.copyOf(amounts, chunk + 1);
+            passengers = Arrays.copyOf(passengers, chunk + 1);
+            flights = Arrays.copyOf(flights, chunk + 1);
+            times[chunk] = new long[CHUNK_SIZE];
+            amounts[chunk] = new long[CHUNK_SIZE];
+            passengers[chunk] = new long[CHUNK_SIZE];
+            flights[chunk] = new int[CHUNK_SIZE];
+        }
+        Integer flightId = flightIds.get(flightNumber);
+        if (flightId == null) {
+            flightId = flightNumbers.size();
+            flightIds.put(flightNumber, flightId);
+            flightNumbers.add(flightNumber);
+            flightTotals.add(new Totals());
+        }
+        int offset = entry & CHUNK_MASK;
+        times[chunk][offset] = millis;
+        amounts[chunk][offset] = amount;
+        passengers[chunk][offset] = passengerId;
+        flights[chunk][offset] = flightId;
+        lastMillis = millis;
+
+        flightTotals.get(flightId).add(amount);
+        dayTotals.computeIfAbsent(Math.floorDiv(millis, MILLIS_PER_DAY), day -> new Totals()).add(amount);
+        totals.add(amount);
+        size = entry + 1; // Publishes the entry to unlocked readers
+        return entry;
+    }
+
+    public int size() {
+        load();
+        return size;
+    }
+
+    // False until the journal has been replayed; until then every other call waits for load()
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized Totals getTotals() {
+        load();
+        return totals.copy();
+    }
+
+    public synchronized Totals getFlightTotals(String flightNumber) {
+        load();
+        Integer flightId = flightIds.get(flightNumber);
+        return flightId == null ? new Totals() : flightTotals.get(flightId).copy();
+    }
+
+    public synchronized Totals getDayTotals(LocalDate date) {
+        load();
+        Totals day = dayTotals.get(date.toEpochDay());
+        return day == null ? new Totals() : day.copy();
+    }
+
+    public synchronized String flightNumber(int flightId) {
+        load();
+        return flightNumbers.get(flightId);
+    }
+
+    // Visits entries [from, to) in order
+    public void scan(int from, int to, EntryVisitor visitor) {
+        load();
+        int end = Math.min(to, size);
+        long[][] times, amounts, passengers;
+        int[][] flights;
+        synchronized (this) { // Only to read the chunk tables consistently; the scan itself is unlocked
+            times = this.times;
+            amounts = this.amounts;
+            passengers = this.passengers;
+            flights = this.flights;
+        }
+        for (int entry = Math.max(from, 0); entry < end; entry++) {
+            int chunk = entry >>> CHUNK_BITS;
+            int offset = entry & CHUNK_MASK;
+            visitor.visit(entry, times[chunk][offset], amounts[chunk][offset], passengers[chunk][offset],
+                    flights[chunk][offset]);
+        }
+    }
+
+    // Net revenue (payments minus refunds) of entries recorded in [fromMillis, toMillis)
+    public long net(long fromMillis, long toMillis) {
+        load();
+        long[][] times, amounts;
+        int end;
+        synchronized (this) {
+            times = this.times;
+            amounts = this.amounts;
+            end = size;
+        }
+        long net = 0;
+        for (int entry = firstAtOrAfter(times, end, fromMillis); entry < end; ) {
+            long[] timeChunk = times[entry >>> CHUNK_BITS];
+            long[] amountChunk = amounts[entry >>> CHUNK_BITS];
+            int offset = entry & CHUNK_MASK;
+            int chunkEnd = Math.min(CHUNK_SIZE, end - (entry - offset));
+            for (; offset < chunkEnd; offset++, entry++) {
+                if (timeChunk[offset] >= toMillis)
+                    return net;
+                net += amountChunk[offset];
+            }
+        }
+        return net;
+    }
+
+    private static int firstAtOrAfter(long[][] times, int end, long millis) {
+        int low = 0;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid >>> CHUNK_BITS][mid & CHUNK_MASK] < millis)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    // Recomputes every flight, day and overall total from the entries and compares them with the running
+    // aggregates. Returns a description of each mismatch; an empty list means the ledger balances.
+    public List<String> reconcile() {
+        load();
+        long[][] times, amounts;
+        int[][] flights;
+        int end;
+        int flightCount;
+        synchronized (this) {
+            times = this.times;
+            amounts = this.amounts;
+            flights = this.flights;
+            end = size;
+            flightCount = flightNumbers.size();
+        }
+        long[] flightPayments = new long[flightCount];
+        long[] flightRefunds = new long[flightCount];
+        long firstDay = end == 0 ? 0 : Math.floorDiv(times[0][0], MILLIS_PER_DAY);
+        long lastDay = end == 0 ? 0 : Math.floorDiv(times[(end - 1) >>> CHUNK_BITS][(end - 1) & CHUNK_MASK],
+                MILLIS_PER_DAY);
+        long[] dayNet = new long[(int) (lastDay - firstDay + 1)];
+        long payments = 0;
+        long refunds = 0;
+        for (int entry = 0; entry < end; entry++) {
+            int chunk = entry >>> CHUNK_BITS;
+            int offset = entry & CHUNK_MASK;
+            long amount = amounts[chunk][offset];
+            int flightId = flights[chunk][offset];
+            if (amount >= 0) {
+                payments += amount;
+                flightPayments[flightId] += amount;
+            } else {
+                refunds -= amount;
+                flightRefunds[flightId] -= amount;
+            }
+            dayNet[(int) (Math.floorDiv(times[chunk][offset], MILLIS_PER_DAY) - firstDay)] += amount;
+        }
+
+        List<String> mismatches = new ArrayList<>();
+        synchronized (this) {
+            if (size != end) // Entries appended meanwhile are not in the recomputed sums
+                return reconcile();
+            if (totals.payments != payments || totals.refunds != refunds)
+                mismatches.add("Overall totals " + Money.format(totals.getNet()) + " != entries "
+                        + Money.format(payments - refunds));
+            for (int flightId = 0; flightId < flightCount; flightId++) {
+                Totals flight = flightTotals.get(flightId);
+                if (flight.payments != flightPayments[flightId] || flight.refunds != flightRefunds[flightId])
+                    mismatches.add("Flight " + flightNumbers.get(flightId) + " totals " + Money.format(flight.getNet())
+                            + " != entries " + Money.format(flightPayments[flightId] - flightRefunds[flightId]));
+            }
+            for (Map.Entry<Long, Totals> day : dayTotals.entrySet()) {
+                int index = (int) (day.getKey() - firstDay);
+                long net = index >= 0 && index < dayNet.length ? dayNet[index] : 0;
+                if (day.getValue().getNet() != net)
+                    mismatches.add("Day " + LocalDate.ofEpochDay(day.getKey()) + " totals "
+                            + Money.format(day.getValue().getNet()) + " != entries " + Money.format(net));
+            }
+        }
+        return mismatches;
+    }
+
+    public synchronized void close() throws IOException {
+        if (journal != null)
+            journal.close();
+    }
+}
+
+// Booking Stages tracked by BookingMetrics
+enum Stage {
+    SERVICES, PAYMENT, SEAT_SELECTION, BOOK_SEAT, TABLE_UPDATE, DASHBOARD_REFRESH, BOOKING, CANCEL;
+
+    String label() {
+        return name().toLowerCase();
+    }
+}
+
+// Latency Histogram Class (log-linear buckets, HdrHistogram-style, lock-free recording)
+class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.getAndIncrement(bucketOf(nanos));
+        sum.add(nanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    // Lower bound (in nanos) of the bucket holding the given percentile (0-100)
+    public long percentile(double percentile) {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return lowerBound(i);
+        }
+        return lowerBound(BUCKETS - 1);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1);
+        return (magnitude - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int magnitude = bucket / SUB_COUNT + SUB_BITS - 1;
+        int sub = bucket % SUB_COUNT;
+        return (long) (SUB_COUNT + sub) << (magnitude - SUB_BITS);
+    }
+}
+
+// JFR Events for bookings and cancellations
+@Name("airline.Booking")
+@Label("Booking")
+@Category("Airline")
+class BookingEvent extends Event {
+    @Label("Flight Number")
+    String flightNumber;
+    @Label("Seat")
+    int seat;
+    @Label("Amount (cents)")
+    long amount;
+}
+
+@Name("airline.Cancellation")
+@Label("Cancellation")
+@Category("Airline")
+class CancellationEvent extends Event {
+    @Label("Flight Number")
+    String flightNumber;
+    @Label("Seat")
+    int seat;
+}
+
+// Booking Metrics Class (counters + per-stage latency, exposed via JMX and Prometheus text format)
+class BookingMetrics implements DynamicMBean {
+    private final boolean enabled;
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private final LongAdder bookings = new LongAdder();
+    private final LongAdder cancellations = new LongAdder();
+    private final LongAdder failedPayments = new LongAdder();
+    private final LongAdder failedBookings = new LongAdder();
+    private final List<Consumer<StringBuilder>> collectors = new CopyOnWriteArrayList<>();
+
+    // Timing is sampled, so a burst of bookings does not pay for System.nanoTime() and a histogram update at
+    // every stage. While samples are at least SAMPLE_GAP_NANOS apart every start() is timed (sampleMask 0);
+    // when they come faster, a booking or cancellation picks the next start() with probability
+    // 1 / (sampleMask + 1), drawn from its thread's ThreadLocalRandom, the mask doubling up to MAX_SAMPLE_MASK
+    // and halving again as the rate drops. An unsampled booking therefore only reads these fields; its one
+    // shared write is the LongAdder count. Racy on purpose: a lost update only moves the next sample.
+    // eventMask is sampleMask, or 0 while JFR records, so that one test tells a booking whether it has
+    // anything more to do; a recording that starts is noticed at the next sample.
+    private static final long SAMPLE_GAP_NANOS = 1_000_000;
+    private static final int MAX_SAMPLE_MASK = 4095;
+    private int sampleMask;
+    private int eventMask;
+    private boolean sampleNext;
+    private long lastSample;
+
+    // Set while a JFR recording runs, so bookings skip allocating events that nothing would record
+    private static volatile boolean jfrRecording;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                recordingStateChanged(null);
+            }
+
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                jfrRecording = FlightRecorder.getFlightRecorder().getRecordings().stream()
+                        .anyMatch(r -> r.getState() == RecordingState.RUNNING);
+            }
+        });
+    }
+
+    public BookingMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Returns a start timestamp, or 0 when metrics are disabled or this call is not sampled
+    public long start() {
+        if (!enabled || (sampleMask != 0 && !sampleNext))
+            return 0L;
+        sampleNext = false;
+        long now = System.nanoTime();
+        sampleMask = now - lastSample < SAMPLE_GAP_NANOS ? Math.min(2 * sampleMask + 1, MAX_SAMPLE_MASK)
+                : sampleMask >>> 1;
+        eventMask = jfrRecording ? 0 : sampleMask;
+        lastSample = now;
+        return now;
+    }
+
+    // Records the time since startNanos and returns the end timestamp, so consecutive stages can chain.
+    // Does nothing for a start of 0.
+    public long record(Stage stage, long startNanos) {
+        if (startNanos == 0)
+            return 0L;
+        long now = System.nanoTime();
+        histograms.get(stage).record(now - startNanos);
+        return now;
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    public void bookingCompleted(String flightNumber, int seat, long amount) {
+        if (!enabled)
+            return;
+        bookings.increment();
+        int draw = ThreadLocalRandom.current().nextInt();
+        if ((draw & eventMask) != 0)
+            return;
+        if ((draw & sampleMask) == 0)
+            sampleNext = true;
+        if (!jfrRecording)
+            return;
+        BookingEvent event = new BookingEvent();
+        if (event.shouldCommit()) {
+            event.flightNumber = flightNumber;
+            event.seat = seat;
+            event.amount = amount;
+            event.commit();
+        }
+    }
+
+    public void bookingCancelled(String flightNumber, int seat) {
+        if (!enabled)
+            return;
+        cancellations.increment();
+        int draw = ThreadLocalRandom.current().nextInt();
+        if ((draw & eventMask) != 0)
+            return;
+        if ((draw & sampleMask) == 0)
+            sampleNext = true;
+        if (!jfrRecording)
+            return;
+        CancellationEvent event = new CancellationEvent();
+        if (event.shouldCommit()) {
+            event.flightNumber = flightNumber;
+            event.seat = seat;
+            event.commit();
+        }
+    }
+
+    public void paymentFailed() {
+        if (enabled)
+            failedPayments.increment();
+    }
+
+    public void bookingFailed() {
+        if (enabled)
+            failedBookings.increment();
+    }
+
+    public long getBookings() {
+        return bookings.sum();
+    }
+
+    public long getCancellations() {
+        return cancellations.sum();
+    }
+
+    // Prometheus text exposition format (version 0.0.4)
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(2048);
+        counter(sb, "airline_bookings_total", "Completed bookings", bookings.sum());
+        counter(sb, "airline_cancellations_total", "Cancelled bookings", cancellations.sum());
+        counter(sb, "airline_failed_payments_total", "Rejected payments", failedPayments.sum());
+        counter(sb, "airline_failed_bookings_total", "Seat bookings that failed", failedBookings.sum());
+
+        sb.append("# HELP airline_stage_latency_seconds Latency of each booking stage (sampled)\n");
+        sb.append("# TYPE airline_stage_latency_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = histograms.get(stage);
+            for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+                sb.append("airline_stage_latency_seconds{stage=\"").append(stage.label())
+                        .append("\",quantile=\"").append(q).append("\"} ")
+                        .append(h.percentile(q * 100) / 1e9).append('\n');
+            }
+            sb.append("airline_stage_latency_seconds_sum{stage=\"").append(stage.label()).append("\"} ")
+                    .append(h.getSum() / 1e9).append('\n');
+            sb.append("airline_stage_latency_seconds_count{stage=\"").append(stage.label()).append("\"} ")
+                    .append(h.getCount()).append('\n');
+        }
+        for (Consumer<StringBuilder> collector : collectors) {
+            collector.accept(sb);
+        }
+        return sb.toString();
+    }
+
+    // Lets other components append their own series to the /metrics output
+    public void registerCollector(Consumer<StringBuilder> collector) {
+        collectors.add(collector);
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    public void registerMBean() {
+        try {
+            ObjectName objectName = new ObjectName("airline:type=BookingMetrics");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+            }
+        } catch (Exception ex) {
+            System.err.println("Could not register BookingMetrics MBean: " + ex.getMessage());
+        }
+    }
+
+    // Serves the Prometheus text format at http://127.0.0.1:<port>/metrics
+    public HttpServer startEndpoint(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    // JMX attributes: Bookings, Cancellations, FailedPayments, FailedBookings,
+    // and <Stage>Count / <Stage>P50Micros / <Stage>P99Micros for every stage
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        switch (attribute) {
+            case "Bookings":
+                return bookings.sum();
+            case "Cancellations":
+                return cancellations.sum();
+            case "FailedPayments":
+                return failedPayments.sum();
+            case "FailedBookings":
+                return failedBookings.sum();
+            default:
+                break;
+        }
+        for (Stage stage : Stage.values()) {
+            String prefix = attributePrefix(stage);
+            if (attribute.startsWith(prefix)) {
+                LatencyHistogram h = histograms.get(stage);
+                switch (attribute.substring(prefix.length())) {
+                    case "Count":
+                        return h.getCount();
+                    case "P50Micros":
+                        return h.percentile(50) / 1000;
+                    case "P99Micros":
+                        return h.percentile(99) / 1000;
+                    default:
+                        break;
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("BookingMetrics attributes are read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException ignored) {
+                // Unknown attributes are skipped, as required by DynamicMBean
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : new String[] { "Bookings", "Cancellations", "FailedPayments", "FailedBookings" }) {
+            attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        }
+        for (Stage stage : Stage.values()) {
+            String prefix = attributePrefix(stage);
+            attributes.add(new MBeanAttributeInfo(prefix + "Count", "long", "Samples", true, false, false));
+            attributes.add(new MBeanAttributeInfo(prefix + "P50Micros", "long", "Median latency", true, false, false));
+            attributes.add(new MBeanAttributeInfo(prefix + "P99Micros", "long", "99th percentile", true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Booking flow metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private static String attributePrefix(Stage stage) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : stage.label().split("_")) {
+            sb.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+        }
+        return sb.toString();
+    }
+}
+
+// Virtual Threads helper: one virtual thread per task where the runtime has them (JDK 21+), otherwise a
+// cached pool of daemon platform threads
+class VirtualThreads {
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
+
+// Background Tasks Class (runs domain work off the event dispatch thread)
+//
+// Jobs run on worker threads and hand results back to the EDT through SwingWorker, which coalesces
+// everything published between two EDT turns into one batch. A status bar shows the running task's
+// progress and lets the user cancel it; with several tasks running, it shows the latest one, and Cancel
+// applies to that task alone.
+class BackgroundTasks {
+    interface Job<T, V> {
+        T run(Progress<V> progress) throws Exception;
+    }
+
+    interface Progress<V> {
+        void emit(V item);
+
+        void progress(int done, int total);
+
+        boolean isCancelled();
+    }
+
+    private final Component parent;
+    private final ExecutorService executor = VirtualThreads.newExecutor();
+    private final Set<Worker<?, ?>> running = new LinkedHashSet<>(); // In submission order
+    private final JPanel statusBar = new JPanel(new BorderLayout(10, 0));
+    private final JLabel statusLabel = new JLabel("Ready");
+    private final JProgressBar progressBar = new JProgressBar(0, 100);
+    private final JButton cancelButton = new JButton("Cancel");
+
+    public BackgroundTasks(Component parent) {
+        this.parent = parent;
+        statusBar.setBorder(new EmptyBorder(4, 10, 4, 10));
+        statusBar.add(statusLabel, BorderLayout.CENTER);
+        JPanel controls = new JPanel(new BorderLayout(10, 0));
+        controls.add(progressBar, BorderLayout.CENTER);
+        controls.add(cancelButton, BorderLayout.EAST);
+        statusBar.add(controls, BorderLayout.EAST);
+        progressBar.setVisible(false);
+        cancelButton.setVisible(false);
+        cancelButton.addActionListener(e -> {
+            Worker<?, ?> shown = shown();
+            if (shown != null && shown.cancellable)
+                shown.cancel(true);
+        });
+    }
+
+    public JPanel getStatusBar() {
+        return statusBar;
+    }
+
+    // onBatch and onDone run on the EDT; onDone is skipped when the task is cancelled or fails
+    public <T, V> SwingWorker<T, V> submit(String description, Job<T, V> job, Consumer<List<V>> onBatch,
+            Consumer<T> onDone) {
+        return submit(description, job, onBatch, onDone, true);
+    }
+
+    // A task that is not cancellable runs to the end once submitted, for work that must not stop halfway
+    // (changing bookings, loading state); the status bar offers no Cancel while it shows one
+    public <T, V> SwingWorker<T, V> submit(String description, Job<T, V> job, Consumer<List<V>> onBatch,
+            Consumer<T> onDone, boolean cancellable) {
+        Worker<T, V> worker = new Worker<>(description, job, onBatch, onDone, cancellable);
+        worker.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName()) && worker == shown())
+                progressBar.setValue((Integer) event.getNewValue());
+        });
+        running.add(worker);
+        updateStatus("Ready");
+        executor.execute(worker);
+        return worker;
+    }
+
+    private class Worker<T, V> extends SwingWorker<T, V> implements Progress<V> {
+        private final String description;
+        private final Job<T, V> job;
+        private final Consumer<List<V>> onBatch;
+        private final Consumer<T> onDone;
+        private final boolean cancellable;
+
+        Worker(String description, Job<T, V> job, Consumer<List<V>> onBatch, Consumer<T> onDone,
+                boolean cancellable) {
+            this.description = description;
+            this.job = job;
+            this.onBatch = onBatch;
+            this.onDone = onDone;
+            this.cancellable = cancellable;
+        }
+
+        @Override
+        protected T doInBackground() throws Exception {
+            return job.run(this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void emit(V item) {
+            super.publish(item);
+        }
+
+        @Override
+        public void progress(int done, int total) {
+            setProgress(total <= 0 ? 0 : (int) Math.min(100, 100L * done / total));
+        }
+
+        @Override
+        protected void process(List<V> batch) {
+            if (onBatch != null && !isCancelled())
+                onBatch.accept(batch);
+        }
+
+        @Override
+        protected void done() {
+            running.remove(this);
+            updateStatus(isCancelled() ? description + " cancelled" : "Ready");
+            if (isCancelled())
+                return;
+            try {
+                T result = get();
+                if (onDone != null)
+                    onDone.accept(result);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                JOptionPane.showMessageDialog(parent, description + " failed: " + ex.getCause().getMessage());
+            }
+        }
+    }
+
+    // The latest task still running, or null
+    private Worker<?, ?> shown() {
+        Worker<?, ?> last = null;
+        for (Worker<?, ?> worker : running) {
+            last = worker;
+        }
+        return last;
+    }
+
+    // Shows the latest running task, or idleText when none is left
+    private void updateStatus(String idleText) {
+        Worker<?, ?> shown = shown();
+        statusLabel.setText(shown == null ? idleText : shown.description + "...");
+        progressBar.setVisible(shown != null);
+        cancelButton.setVisible(shown != null && shown.cancellable);
+        if (shown != null)
+            progressBar.setValue(shown.getProgress());
+    }
+}
+
+// Flight Search Cache Class (rendered search results in front of Airline.searchFlights)
+//
+// Each entry remembers the airline's schedule version and the version of every flight in the result.
+// A read is a hit only if none of them moved, so a booking or cancellation invalidates exactly the entries
+// containing that flight, and adding or archiving flights invalidates everything. Entries live in an
+// on-heap LRU; optionally, entries evicted from it are kept as bytes in direct (off-heap) buffers, with
+// their own LRU bounded by total size.
+class FlightSearchCache {
+    private final Airline airline;
+    private final int maxEntries;
+    private final long maxOffHeapBytes;
+    private final LinkedHashMap<String, Entry> heap;
+    private final LinkedHashMap<String, OffHeapEntry> offHeap = new LinkedHashMap<>(16, 0.75f, true);
+    private long offHeapBytes;
+
+    private final LongAdder heapHits = new LongAdder();
+    private final LongAdder offHeapHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static class Entry {
+        final String value;
+        final long scheduleVersion;
+        final Flight[] flights;
+        final long[] versions;
+
+        Entry(String value, long scheduleVersion, Flight[] flights, long[] versions) {
+            this.value = value;
+            this.scheduleVersion = scheduleVersion;
+            this.flights = flights;
+            this.versions = versions;
+        }
+    }
+
+    // Off-heap entries keep flight numbers rather than Flight references
+    private static class OffHeapEntry {
+        final ByteBuffer value;
+        final long scheduleVersion;
+        final String[] flightNumbers;
+        final long[] versions;
+
+        OffHeapEntry(ByteBuffer value, long scheduleVersion, String[] flightNumbers, long[] versions) {
+            this.value = value;
+            this.scheduleVersion = scheduleVersion;
+            this.flightNumbers = flightNumbers;
+            this.versions = versions;
+        }
+    }
+
+    public FlightSearchCache(Airline airline, int maxEntries, long maxOffHeapBytes) {
+        this.airline = airline;
+        this.maxEntries = maxEntries;
+        this.maxOffHeapBytes = maxOffHeapBytes;
+        this.heap = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= FlightSearchCache.this.maxEntries)
+                    return false;
+                evictions.increment();
+                spill(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    // Cached rendering of searchFlights(origin, destination, date). The criteria are normalized once and the
+    // search runs on the normalized values, so every request sharing a key gets the same flights.
+    public String search(String origin, String destination, String date, Function<List<Flight>, String> render) {
+        origin = normalize(origin);
+        destination = normalize(destination);
+        date = normalize(date);
+        String key = origin + "|" + destination + "|" + date;
+        synchronized (this) {
+            Entry entry = heap.get(key);
+            if (entry != null) {
+                if (isCurrent(entry)) {
+                    heapHits.increment();
+                    return entry.value;
+                }
+                stale.increment();
+                heap.remove(key);
+            } else {
+                String value = fromOffHeap(key);
+                if (value != null)
+                    return value;
+            }
+        }
+        misses.increment();
+
+        // Versions are taken before rendering, so a change made while rendering shows up as stale later
+        long scheduleVersion = airline.getScheduleVersion();
+        List<Flight> flights = airline.searchFlights(origin, destination, date);
+        long[] versions = new long[flights.size()];
+        for (int i = 0; i < versions.length; i++)
+            versions[i] = flights.get(i).getVersion();
+        String value = render.apply(flights);
+
+        synchronized (this) {
+            heap.put(key, new Entry(value, scheduleVersion, flights.toArray(new Flight[0]), versions));
+        }
+        return value;
+    }
+
+    private boolean isCurrent(Entry entry) {
+        if (entry.scheduleVersion != airline.getScheduleVersion())
+            return false;
+        for (int i = 0; i < entry.flights.length; i++) {
+            if (entry.flights[i].getVersion() != entry.versions[i])
+                return false;
+        }
+        return true;
+    }
+
+    private String fromOffHeap(String key) {
+        OffHeapEntry entry = offHeap.remove(key);
+        if (entry == null)
+            return null;
+        offHeapBytes -= entry.value.capacity();
+        Flight[] flights = new Flight[entry.flightNumbers.length];
+        boolean current = entry.scheduleVersion == airline.getScheduleVersion();
+        for (int i = 0; current && i < flights.length; i++) {
+            flights[i] = airline.findFlight(entry.flightNumbers[i]);
+            current = flights[i] != null && flights[i].getVersion() == entry.versions[i];
+        }
+        if (!current) {
+            stale.increment();
+            return null;
+        }
+        byte[] bytes = new byte[entry.value.capacity()];
+        entry.value.duplicate().get(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        offHeapHits.increment();
+        heap.put(key, new Entry(value, entry.scheduleVersion, flights, entry.versions)); // Promote
+        return value;
+    }
+
+    private void spill(String key, Entry entry) {
+        if (maxOffHeapBytes <= 0 || !isCurrent(entry))
+            return;
+        byte[] bytes = entry.value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxOffHeapBytes)
+            return;
+        while (offHeapBytes + bytes.length > maxOffHeapBytes) {
+            Iterator<OffHeapEntry> eldest = offHeap.values().iterator();
+            offHeapBytes -= eldest.next().value.capacity();
+            eldest.remove();
+            evictions.increment();
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        String[] flightNumbers = new String[entry.flights.length];
+        for (int i = 0; i < flightNumbers.length; i++)
+            flightNumbers[i] = entry.flights[i].getFlightNumber();
+        offHeap.put(key, new OffHeapEntry(buffer, entry.scheduleVersion, flightNumbers, entry.versions));
+        offHeapBytes += bytes.length;
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim().toLowerCase();
+    }
+
+    public synchronized int size() {
+        return heap.size() + offHeap.size();
+    }
+
+    public void appendPrometheus(StringBuilder sb) {
+        sb.append("# HELP airline_search_cache_requests_total Flight search cache lookups by result\n");
+        sb.append("# TYPE airline_search_cache_requests_total counter\n");
+        sb.append("airline_search_cache_requests_total{result=\"hit\",tier=\"heap\"} ").append(heapHits.sum()).append('\n');
+        sb.append("airline_search_cache_requests_total{result=\"hit\",tier=\"offheap\"} ").append(offHeapHits.sum())
+                .append('\n');
+        sb.append("airline_search_cache_requests_total{result=\"miss\",tier=\"none\"} ").append(misses.sum()).append('\n');
+        sb.append("# HELP airline_search_cache_stale_total Cached results dropped because a flight or the schedule changed\n");
+        sb.append("# TYPE airline_search_cache_stale_total counter\n");
+        sb.append("airline_search_cache_stale_total ").append(stale.sum()).append('\n');
+        sb.append("# HELP airline_search_cache_evictions_total Entries evicted by size limits\n");
+        sb.append("# TYPE airline_search_cache_evictions_total counter\n");
+        sb.append("airline_search_cache_evictions_total ").append(evictions.sum()).append('\n');
+        synchronized (this) {
+            sb.append("# HELP airline_search_cache_entries Entries currently cached\n");
+            sb.append("# TYPE airline_search_cache_entries gauge\n");
+            sb.append("airline_search_cache_entries{tier=\"heap\"} ").append(heap.size()).append('\n');
+            sb.append("airline_search_cache_entries{tier=\"offheap\"} ").append(offHeap.size()).append('\n');
+            sb.append("# HELP airline_search_cache_offheap_bytes Bytes held in direct buffers\n");
+            sb.append("# TYPE airline_search_cache_offheap_bytes gauge\n");
+            sb.append("airline_search_cache_offheap_bytes ").append(offHeapBytes).append('\n');
+        }
+    }
+
+    public double getHitRate() {
+        long hits = heapHits.sum() + offHeapHits.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
+
+// Admission Control Class (rate limits, a bounded queue and fair scheduling in front of the booking path)
+//
+// A request first needs a token from its client's bucket and from its flight's bucket, otherwise it is
+// refused with 429 and neither bucket is charged. At most `concurrency` requests run at once; the rest wait in a per-flight FIFO, and a
+// finishing request hands its slot to the next flight in round-robin order, so a flash sale on one flight
+// gets its share of the slots and never starves the rest. Work is shed with 503 when the queue is full,
+// when one flight already holds its share of the queue, or when a request has waited longer than the
+// queue timeout, which bounds the tail latency of everything that is admitted. An admitted request runs
+// on its caller's thread, so an idle system pays no hand-off.
+class AdmissionControl {
+    enum Outcome {
+        ADMITTED, CLIENT_RATE, FLIGHT_RATE, QUEUE_FULL, FLIGHT_SHARE, TIMEOUT;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    interface Work {
+        void run() throws IOException;
+    }
+
+    // Thrown by execute() when the work did not run; status is 429 or 503
+    static class Rejected extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final Outcome outcome;
+        final int status;
+        final long retryAfterSeconds;
+
+        Rejected(Outcome outcome, long retryAfterNanos) {
+            super(outcome.label());
+            this.outcome = outcome;
+            this.status = outcome == Outcome.CLIENT_RATE || outcome == Outcome.FLIGHT_RATE ? 429 : 503;
+            this.retryAfterSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryAfterNanos + 999_999_999));
+        }
+    }
+
+    // Token bucket refilled continuously from System.nanoTime()
+    static class TokenBucket {
+        private final double capacity;
+        private final double perNano;
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(double perSecond, double capacity) {
+            this.capacity = capacity;
+            this.perNano = perSecond / 1e9;
+            this.tokens = capacity;
+            this.refilledAt = System.nanoTime();
+        }
+
+        // 0 when the tokens were taken, otherwise nanos until enough will be available
+        synchronized long tryAcquire(int cost, long now) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * perNano);
+            refilledAt = now;
+            if (tokens >= cost) {
+                tokens -= cost;
+                return 0;
+            }
+            return Math.max(1, (long) ((cost - tokens) / perNano));
+        }
+
+        // Gives back tokens taken for a request that was refused elsewhere
+        synchronized void refund(int cost) {
+            tokens = Math.min(capacity, tokens + cost);
+        }
+
+        synchronized boolean isIdle(long now) {
+            return tokens + (now - refilledAt) * perNano >= capacity;
+        }
+    }
+
+    // A request waiting for a slot; granted is guarded by the AdmissionControl
+    private static class Ticket {
+        final String flight;
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean granted;
+
+        Ticket(String flight) {
+            this.flight = flight;
+        }
+    }
+
+    private static final int MAX_BUCKETS = 100_000;
+
+    private final double clientRate = Double.parseDouble(System.getProperty("admission.client.rate", "20"));
+    private final double clientBurst = Double.parseDouble(System.getProperty("admission.client.burst", "40"));
+    private final double flightRate = Double.parseDouble(System.getProperty("admission.flight.rate", "500"));
+    private final double flightBurst = Double.parseDouble(System.getProperty("admission.flight.burst", "1000"));
+    private final int queueCapacity = Integer.getInteger("admission.queue", 1024);
+    private final int flightShare = Integer.getInteger("admission.flight.share", Math.max(1, queueCapacity / 4));
+    private final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("admission.timeout.ms", 250));
+    private final int concurrency;
+    private final Map<String, TokenBucket> clientBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> flightBuckets = new ConcurrentHashMap<>();
+
+    // Guarded by this: the waiting tickets of each flight and the flights with waiters, in round-robin order
+    private final Map<String, ArrayDeque<Ticket>> queues = new HashMap<>();
+    private final ArrayDeque<String> ready = new ArrayDeque<>();
+    private int queued;
+    private int running;
+
+    private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    public AdmissionControl() {
+        this(Integer.getInteger("admission.concurrency", 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    public AdmissionControl(int concurrency) {
+        this.concurrency = concurrency;
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+    }
+
+    // Runs the work once it is admitted, or throws Rejected. flightNumber may be null.
+    public void execute(String client, String flightNumber, int cost, Work work) throws Rejected, IOException {
+        long now = System.nanoTime();
+        TokenBucket clientBucket = bucket(clientBuckets, client, clientRate, clientBurst);
+        long wait = clientBucket.tryAcquire(1, now);
+        if (wait > 0)
+            throw reject(Outcome.CLIENT_RATE, wait);
+        String key = flightNumber == null ? "" : flightNumber;
+        if (flightNumber != null) {
+            int tokens = (int) Math.min(cost, flightBurst); // A group larger than the burst could never pass
+            wait = bucket(flightBuckets, key, flightRate, flightBurst).tryAcquire(tokens, now);
+            if (wait > 0) {
+                clientBucket.refund(1); // Otherwise clients on a hot flight would be throttled twice
+                throw reject(Outcome.FLIGHT_RATE, wait);
+            }
+        }
+
+        Ticket ticket = null;
+        synchronized (this) {
+            if (running < concurrency && queued == 0) {
+                running++;
+            } else {
+                ticket = enqueue(key);
+            }
+        }
+        if (ticket != null) {
+            awaitSlot(ticket, now);
+            queueWait.record(System.nanoTime() - now);
+        }
+        try {
+            work.run();
+            outcomes[Outcome.ADMITTED.ordinal()].increment();
+        } finally {
+            release();
+        }
+    }
+
+    // Called holding the lock
+    private Ticket enqueue(String key) throws Rejected {
+        if (queued >= queueCapacity)
+            throw reject(Outcome.QUEUE_FULL, timeoutNanos);
+        ArrayDeque<Ticket> queue = queues.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(key, queue);
+            ready.add(key);
+        } else if (queue.size() >= flightShare) {
+            throw reject(Outcome.FLIGHT_SHARE, timeoutNanos);
+        }
+        Ticket ticket = new Ticket(key);
+        queue.add(ticket);
+        queued++;
+        return ticket;
+    }
+
+    private void awaitSlot(Ticket ticket, long enqueuedAt) throws Rejected {
+        boolean interrupted = false;
+        try {
+            ticket.done.await(timeoutNanos - (System.nanoTime() - enqueuedAt), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            interrupted = true;
+        }
+        synchronized (this) {
+            if (!ticket.granted) {
+                ArrayDeque<Ticket> queue = queues.get(ticket.flight);
+                queue.remove(ticket);
+                queued--;
+                if (queue.isEmpty()) {
+                    queues.remove(ticket.flight);
+                    ready.remove(ticket.flight);
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (!ticket.granted) {
+            queueWait.record(System.nanoTime() - enqueuedAt);
+            throw reject(Outcome.TIMEOUT, timeoutNanos);
+        }
+    }
+
+    // Hands the finished request's slot to the next flight in the ring, or frees it
+    private synchronized void release() {
+        String key = ready.poll();
+        if (key == null) {
+            running--;
+            return;
+        }
+        ArrayDeque<Ticket> queue = queues.get(key);
+        Ticket next = queue.poll();
+        if (queue.isEmpty())
+            queues.remove(key);
+        else
+            ready.add(key); // Back of the ring: every other flight with waiters goes first
+        queued--;
+        next.granted = true;
+        next.done.countDown();
+    }
+
+    private Rejected reject(Outcome outcome, long retryAfterNanos) {
+        outcomes[outcome.ordinal()].increment();
+        return new Rejected(outcome, retryAfterNanos);
+    }
+
+    private static TokenBucket bucket(Map<String, TokenBucket> buckets, String key, double rate, double burst) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket != null)
+            return bucket;
+        if (buckets.size() >= MAX_BUCKETS) {
+            long now = System.nanoTime(); // A full bucket holds no state worth keeping
+            buckets.values().removeIf(candidate -> candidate.isIdle(now));
+        }
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(rate, burst));
+    }
+
+    public long getCount(Outcome outcome) {
+        return outcomes[outcome.ordinal()].sum();
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    void appendPrometheus(StringBuilder sb) {
+        sb.append("# HELP airline_admission_requests_total Booking requests by admission outcome\n");
+        sb.append("# TYPE airline_admission_requests_total counter\n");
+        for (Outcome outcome : Outcome.values()) {
+            sb.append("airline_admission_requests_total{outcome=\"").append(outcome.label()).append("\"} ")
+                    .append(getCount(outcome)).append('\n');
+        }
+        sb.append("# HELP airline_admission_queued Booking requests waiting for a slot\n");
+        sb.append("# TYPE airline_admission_queued gauge\n");
+        sb.append("airline_admission_queued ").append(getQueued()).append('\n');
+        sb.append("# HELP airline_admission_queue_wait_seconds Time queued requests waited for a slot\n");
+        sb.append("# TYPE airline_admission_queue_wait_seconds summary\n");
+        for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+            sb.append("airline_admission_queue_wait_seconds{quantile=\"").append(q).append("\"} ")
+                    .append(queueWait.percentile(q * 100) / 1e9).append('\n');
+        }
+        sb.append("airline_admission_queue_wait_seconds_sum ").append(queueWait.getSum() / 1e9).append('\n');
+        sb.append("airline_admission_queue_wait_seconds_count ").append(queueWait.getCount()).append('\n');
+    }
+}
+
+// Booking API Server Class (embedded JDK HttpServer exposing the booking flow as JSON over HTTP)
+//
+//   GET    /flights?origin=&destination=&date=      search flights
+//   GET    /flights/{flightNumber}/seats             seat map (streamed)
+//   GET    /flights/{flightNumber}/services          stock and remaining count of each service
+//   POST   /bookings?name=&flight=                   start a booking, returns its id (random, not guessable)
+//   POST   /bookings/{id}/services?service=          add wifi, baggage, vegetarian, non-vegetarian or kids
+//   POST   /bookings/{id}/payment?method=&seat=      pay and book the seat
+//   DELETE /bookings/{id}                            cancel the booking
+//   POST   /groups?flight=&names=&services=&method=   book a comma-separated group of names, all or nothing;
+//                                                    services are per passenger when ';'-separated (in the
+//                                                    order of the names), otherwise the same for everyone
+//   GET    /search?q=&type=passengers|flights&fuzzy=&limit=   type-ahead search
+//   GET    /archive/{flightNumber}?date=yyyy-MM-dd   departed flight and its manifest from the archive
+//   GET    /ledger?flight=|date=yyyy-MM-dd           revenue totals, overall, per flight or per day
+//   GET    /ledger/reconcile                         recompute totals from ledger entries and compare
+//   GET    /metrics                                  Prometheus metrics
+//
+// Parameters may be sent in the query string or as an application/x-www-form-urlencoded body.
+// Requests that change bookings pass through AdmissionControl, keyed by the client and the flight; they may
+// be refused with 429 or shed with 503, both with Retry-After. The client is the remote address, or the
+// X-Client-Id header when the request comes from a trusted proxy (-Dadmission.trusted.proxies, a
+// comma-separated list of addresses), since anyone else could send a new id with every request. Unpaid
+// bookings expire and are limited per client; bookings on archived flights are dropped.
+class BookingApiServer {
+    private final Airline airline;
+    private final BookingMetrics metrics;
+    private final BookingArchive archive;
+    private final FlightSearchCache searchCache;
+    private final AdmissionControl admission; // Null when -Dadmission.enabled=false
+    private final Set<String> trustedProxies = new HashSet<>();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<Long, ApiBooking> bookings = new ConcurrentHashMap<>(); // By handle
+    // Unpaid bookings expire after -Dapi.booking.ttl.seconds, and a client may have at most
+    // -Dapi.booking.unpaid.max of them, so handles cannot pile up in memory
+    private final long unpaidTtlNanos = TimeUnit.SECONDS.toNanos(Long.getLong("api.booking.ttl.seconds", 900));
+    private final int unpaidMax = Integer.getInteger("api.booking.unpaid.max", 50);
+    private final Map<String, Integer> unpaidByClient = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "api-booking-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // Otherwise a keep-alive response can sit behind Nagle's algorithm until the client's delayed ACK,
+        // about 40 ms, which caps each connection at some 25 requests/s
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    // Booking handles are random 64-bit values, so a client cannot reach other bookings by counting from its
+    // own; the compact passenger id stays the passenger's id. Each thread draws from its own generator, split
+    // once from a securely seeded root.
+    private static final SplittableRandom HANDLE_ROOT = new SplittableRandom(new SecureRandom().nextLong());
+    private static final ThreadLocal<SplittableRandom> HANDLES = ThreadLocal.withInitial(() -> {
+        synchronized (HANDLE_ROOT) {
+            return HANDLE_ROOT.split();
+        }
+    });
+
+    // A booking in progress (seat == -1) or completed through the API
+    static class ApiBooking {
+        final long handle = HANDLES.get().nextLong();
+        final long created = System.nanoTime();
+        final Passenger passenger;
+        final Flight flight;
+        int seat = -1;
+        long amount; // Cents
+        String unpaidClient; // Counted against this client until paid or dropped; guarded by the booking
+
+        ApiBooking(Passenger passenger, Flight flight) {
+            this.passenger = passenger;
+            this.flight = flight;
+        }
+    }
+
+    static String formatHandle(long handle) {
+        return String.format("%016x", handle);
+    }
+
+    static long parseHandle(String handle) {
+        try {
+            return Long.parseUnsignedLong(handle, 16);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid booking id: " + handle);
+        }
+    }
+
+    public BookingApiServer(Airline airline, BookingMetrics metrics, BookingArchive archive, int port)
+            throws IOException {
+        this.airline = airline;
+        this.metrics = metrics;
+        this.archive = archive;
+        this.searchCache = new FlightSearchCache(airline, Integer.getInteger("cache.entries", 10_000),
+                Long.getLong("cache.offheap.bytes", 0L));
+        metrics.registerCollector(searchCache::appendPrometheus);
+        this.admission = Boolean.parseBoolean(System.getProperty("admission.enabled", "true"))
+                ? new AdmissionControl() : null;
+        if (admission != null)
+            metrics.registerCollector(admission::appendPrometheus);
+        for (String proxy : System.getProperty("admission.trusted.proxies", "").split(",")) {
+            if (!proxy.trim().isEmpty())
+                trustedProxies.add(InetAddress.getByName(proxy.trim()).getHostAddress());
+        }
+        metrics.registerCollector(this::appendPrometheus);
+        airline.addArchiveListener(archived -> {
+            for (ApiBooking booking : bookings.values()) {
+                if (archived.contains(booking.flight))
+                    drop(booking);
+            }
+        });
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.executor = VirtualThreads.newExecutor();
+        server.setExecutor(executor);
+        server.createContext("/flights", exchange -> handle(exchange, this::flights));
+        server.createContext("/bookings", exchange -> handle(exchange, ex -> admit(ex, this::bookings)));
+        server.createContext("/groups", exchange -> handle(exchange, ex -> admit(ex, this::groups)));
+        server.createContext("/search", exchange -> handle(exchange, this::search));
+        server.createContext("/archive", exchange -> handle(exchange, this::archived));
+        server.createContext("/ledger", exchange -> handle(exchange, this::ledger));
+        server.createContext("/metrics", exchange -> handle(exchange, ex -> {
+            send(ex, 200, "text/plain; version=0.0.4; charset=utf-8", metrics.toPrometheus());
+        }));
+    }
+
+    public void start() {
+        long period = Math.max(1, Math.min(unpaidTtlNanos / 4, TimeUnit.MINUTES.toNanos(1)));
+        expiry.scheduleWithFixedDelay(this::expireUnpaid, period, period, TimeUnit.NANOSECONDS);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+        expiry.shutdown();
+    }
+
+    private void expireUnpaid() {
+        long now = System.nanoTime();
+        for (ApiBooking booking : bookings.values()) {
+            synchronized (booking) {
+                if (booking.seat == -1 && now - booking.created > unpaidTtlNanos)
+                    drop(booking);
+            }
+        }
+    }
+
+    // Forgets a booking's handle, and its place in its client's unpaid allowance
+    private void drop(ApiBooking booking) {
+        synchronized (booking) {
+            bookings.remove(booking.handle, booking);
+            paid(booking);
+        }
+    }
+
+    // Called holding the booking's lock
+    private void paid(ApiBooking booking) {
+        if (booking.unpaidClient != null) {
+            unpaidByClient.computeIfPresent(booking.unpaidClient, (client, count) -> count == 1 ? null : count - 1);
+            booking.unpaidClient = null;
+        }
+    }
+
+    public int getBookingCount() {
+        return bookings.size();
+    }
+
+    void appendPrometheus(StringBuilder sb) {
+        sb.append("# HELP airline_api_bookings Booking handles held by the API (paid and unpaid)\n");
+        sb.append("# TYPE airline_api_bookings gauge\n");
+        sb.append("airline_api_bookings ").append(bookings.size()).append('\n');
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            handler.handle(exchange);
+        } catch (IllegalArgumentException ex) {
+            sendJson(exchange, 400, error(ex.getMessage()));
+        } catch (RuntimeException ex) {
+            sendJson(exchange, 500, error("Internal error: " + ex));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String client(HttpExchange exchange) {
+        String client = exchange.getRemoteAddress().getAddress().getHostAddress();
+        if (trustedProxies.contains(client)) {
+            String forwarded = exchange.getRequestHeaders().getFirst("X-Client-Id");
+            if (forwarded != null && !forwarded.isEmpty())
+                client = forwarded;
+        }
+        return client;
+    }
+
+    // Booking changes wait their turn in admission control; reads are served directly
+    private void admit(HttpExchange exchange, Handler handler) throws IOException {
+        if (admission == null || exchange.getRequestMethod().equals("GET")) {
+            handler.handle(exchange);
+            return;
+        }
+        String client = client(exchange);
+        Map<String, String> params = params(exchange);
+        String flightNumber = params.get("flight");
+        int cost = 1;
+        String context = exchange.getHttpContext().getPath();
+        if (context.equals("/groups")) {
+            cost = Math.max(1, params.getOrDefault("names", "").split(",").length); // A token per seat
+        } else {
+            String[] path = pathSegments(exchange, context);
+            ApiBooking booking = path.length > 0 ? bookings.get(parseHandle(path[0])) : null;
+            if (booking != null)
+                flightNumber = booking.flight.getFlightNumber();
+        }
+
+        try {
+            admission.execute(client, flightNumber, cost, () -> handler.handle(exchange));
+        } catch (AdmissionControl.Rejected ex) {
+            exchange.getResponseHeaders().set("Retry-After", Long.toString(ex.retryAfterSeconds));
+            sendJson(exchange, ex.status, error(ex.status == 429 ? "Too many requests" : "Overloaded, retry later"));
+        }
+    }
+
+    private void flights(HttpExchange exchange) throws IOException {
+        String[] path = pathSegments(exchange, "/flights");
+        if (!exchange.getRequestMethod().equals("GET")) {
+            sendJson(exchange, 405, error("Method not allowed"));
+        } else if (path.length == 0) {
+            Map<String, String> params = params(exchange);
+            sendJson(exchange, 200, searchCache.search(params.get("origin"), params.get("destination"),
+                    params.get("date"), BookingApiServer::renderFlights));
+        } else if (path.length == 2 && path[1].equals("seats")) {
+            Flight flight = airline.findFlight(path[0]);
+            if (flight == null) {
+                sendJson(exchange, 404, error("Flight not found"));
+                return;
+            }
+            streamSeatMap(exchange, flight);
+        } else if (path.length == 2 && path[1].equals("services")) {
+            Flight flight = airline.findFlight(path[0]);
+            if (flight == null) {
+                sendJson(exchange, 404, error("Flight not found"));
+                return;
+            }
+            sendJson(exchange, 200, inventoryJson(flight.getServiceInventory()));
+        } else {
+            sendJson(exchange, 404, error("Not found"));
+        }
+    }
+
+    private static String inventoryJson(ServiceInventory inventory) {
+        StringBuilder json = new StringBuilder(256).append('[');
+        for (String service : inventory.getServiceNames()) {
+            if (json.length() > 1)
+                json.append(',');
+            json.append("{\"service\":").append(quote(service))
+                    .append(",\"capacity\":").append(inventory.getCapacity(service))
+                    .append(",\"remaining\":").append(inventory.getRemaining(service)).append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private static String renderFlights(List<Flight> flights) {
+        StringBuilder json = new StringBuilder(64 + flights.size() * 160).append('[');
+        for (int i = 0; i < flights.size(); i++) {
+            if (i > 0)
+                json.append(',');
+            appendFlight(json, flights.get(i));
+        }
+        return json.append(']').toString();
+    }
+
+    // Seat maps are written straight to the response (chunked) instead of being built as one string
+    private void streamSeatMap(HttpExchange exchange, Flight flight) throws IOException {
+        boolean[] seats = flight.snapshotSeatAvailability();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192)) {
+            out.write("{\"flightNumber\":");
+            out.write(quote(flight.getFlightNumber()));
+            out.write(",\"totalSeats\":" + seats.length + ",\"seats\":[");
+            for (int i = 0; i < seats.length; i++) {
+                if (i > 0)
+                    out.write(',');
+                out.write(seats[i] ? "true" : "false");
+            }
+            out.write("]}");
+        }
+    }
+
+    private void bookings(HttpExchange exchange) throws IOException {
+        String[] path = pathSegments(exchange, "/bookings");
+        String method = exchange.getRequestMethod();
+        Map<String, String> params = params(exchange);
+
+        if (path.length == 0 && method.equals("POST")) {
+            Flight flight = airline.findFlight(required(params, "flight"));
+            if (flight == null) {
+                sendJson(exchange, 404, error("Flight not found"));
+                return;
+            }
+            if (flight.getAvailableSeats() <= 0) {
+                sendJson(exchange, 409, error("No seats available"));
+                return;
+            }
+            String client = client(exchange);
+            if (unpaidByClient.merge(client, 1, Integer::sum) > unpaidMax) {
+                unpaidByClient.computeIfPresent(client, (key, count) -> count == 1 ? null : count - 1);
+                sendJson(exchange, 429, error("Too many unpaid bookings; pay or cancel one first"));
+                return;
+            }
+            ApiBooking booking = new ApiBooking(new Passenger(required(params, "name")), flight);
+            booking.unpaidClient = client;
+            bookings.put(booking.handle, booking);
+            if (flight.isClosed()) { // Archived meanwhile, perhaps after its bookings were evicted
+                drop(booking);
+                sendJson(exchange, 404, error("Flight not found"));
+                return;
+            }
+            sendJson(exchange, 201, bookingJson(booking));
+            return;
+        }
+
+        ApiBooking booking = path.length > 0 ? bookings.get(parseHandle(path[0])) : null;
+        if (booking == null) {
+            sendJson(exchange, 404, error("Booking not found"));
+        } else if (path.length == 1 && method.equals("GET")) {
+            sendJson(exchange, 200, bookingJson(booking));
+        } else if (path.length == 1 && method.equals("DELETE")) {
+            cancel(exchange, booking);
+        } else if (path.length == 2 && path[1].equals("services") && method.equals("POST")) {
+            addService(exchange, booking, required(params, "service"));
+        } else if (path.length == 2 && path[1].equals("payment") && method.equals("POST")) {
+            pay(exchange, booking, required(params, "method"), params.get("seat"));
+        } else {
+            sendJson(exchange, 404, error("Not found"));
+        }
+    }
+
+    private void archived(HttpExchange exchange) throws IOException {
+        String[] path = pathSegments(exchange, "/archive");
+        if (path.length != 1) {
+            sendJson(exchange, 404, error("Not found"));
+            return;
+        }
+        String date = params(exchange).get("date");
+        LocalDate departureDate;
+        try {
+            departureDate = date == null ? null : LocalDate.parse(date);
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException("Invalid date: " + date);
+        }
+        Flight flight = archive.find(path[0], departureDate);
+        if (flight == null) {
+            sendJson(exchange, 404, error("Flight not found in archive"));
+            return;
+        }
+        StringBuilder json = new StringBuilder(256);
+        appendFlight(json, flight);
+        json.setLength(json.length() - 1);
+        json.append(",\"passengers\":[");
+        boolean first = true;
+        for (int seat = 0; seat < flight.getTotalSeats(); seat++) {
+            Passenger passenger = flight.getPassengerAt(seat);
+            if (passenger == null)
+                continue;
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append("{\"id\":").append(quote(passenger.getId()))
+                    .append(",\"name\":").append(quote(passenger.getName()))
+                    .append(",\"seat\":").append(seat + 1).append('}');
+        }
+        sendJson(exchange, 200, json.append("]}").toString());
+    }
+
+    private void ledger(HttpExchange exchange) throws IOException {
+        String[] path = pathSegments(exchange, "/ledger");
+        RevenueLedger ledger = airline.getLedger();
+        if (path.length == 1 && path[0].equals("reconcile")) {
+            List<String> mismatches = ledger.reconcile();
+            StringBuilder json = new StringBuilder(64).append("{\"entries\":").append(ledger.size())
+                    .append(",\"balanced\":").append(mismatches.isEmpty()).append(",\"mismatches\":[");
+            for (int i = 0; i < mismatches.size(); i++) {
+                if (i > 0)
+                    json.append(',');
+                json.append(quote(mismatches.get(i)));
+            }
+            sendJson(exchange, 200, json.append("]}").toString());
+            return;
+        }
+        if (path.length != 0) {
+            sendJson(exchange, 404, error("Not found"));
+            return;
+        }
+        Map<String, String> params = params(exchange);
+        RevenueLedger.Totals totals;
+        if (params.containsKey("flight")) {
+            totals = ledger.getFlightTotals(params.get("flight"));
+        } else if (params.containsKey("date")) {
+            try {
+                totals = ledger.getDayTotals(LocalDate.parse(params.get("date")));
+            } catch (DateTimeParseException ex) {
+                throw new IllegalArgumentException("Invalid date: " + params.get("date"));
+            }
+        } else {
+            totals = ledger.getTotals();
+        }
+        sendJson(exchange, 200, "{\"payments\":" + Money.toDecimal(totals.getPayments())
+                + ",\"paymentCount\":" + totals.getPaymentCount()
+                + ",\"refunds\":" + Money.toDecimal(totals.getRefunds())
+                + ",\"refundCount\":" + totals.getRefundCount()
+                + ",\"net\":" + Money.toDecimal(totals.getNet()) + "}");
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        Map<String, String> params = params(exchange);
+        String query = required(params, "q");
+        boolean fuzzy = Boolean.parseBoolean(params.getOrDefault("fuzzy", "false"));
+        int limit;
+        try {
+            limit = Math.min(1000, Integer.parseInt(params.getOrDefault("limit", "20")));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid limit: " + params.get("limit"));
+        }
+
+        StringBuilder json = new StringBuilder("[");
+        if (params.getOrDefault("type", "passengers").equals("flights")) {
+            List<Flight> flights = airline.searchFlightsByText(query, limit, fuzzy);
+            for (int i = 0; i < flights.size(); i++) {
+                if (i > 0)
+                    json.append(',');
+                appendFlight(json, flights.get(i));
+            }
+        } else {
+            List<Booking> matches = airline.searchPassengers(query, limit, fuzzy);
+            for (int i = 0; i < matches.size(); i++) {
+                Booking booking = matches.get(i);
+                if (i > 0)
+                    json.append(',');
+                json.append("{\"id\":").append(quote(booking.getPassenger().getId()))
+                        .append(",\"name\":").append(quote(booking.getPassenger().getName()))
+                        .append(",\"flight\":").append(quote(booking.getFlight().getFlightNumber()))
+                        .append(",\"seat\":").append(booking.getSeat() + 1).append('}');
+            }
+        }
+        sendJson(exchange, 200, json.append(']').toString());
+    }
+
+    private void groups(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendJson(exchange, 405, error("Method not allowed"));
+            return;
+        }
+        Map<String, String> params = params(exchange);
+        Flight flight = airline.findFlight(required(params, "flight"));
+        if (flight == null) {
+            sendJson(exchange, 404, error("Flight not found"));
+            return;
+        }
+        String[] names = required(params, "names").split(",");
+        String services = params.getOrDefault("services", "");
+        String[] perPassenger = services.contains(";") ? services.split(";", -1) : null;
+        if (perPassenger != null && perPassenger.length > names.length)
+            throw new IllegalArgumentException("More services entries than names");
+        List<Passenger> group = new ArrayList<>();
+        List<Service> groupServices = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].trim().isEmpty())
+                continue;
+            Passenger passenger = new Passenger(names[i].trim());
+            String codes = perPassenger == null ? services : i < perPassenger.length ? perPassenger[i] : "";
+            for (String code : codes.split(",")) {
+                if (!code.trim().isEmpty())
+                    passenger.addService(createService(code.trim()));
+            }
+            groupServices.addAll(passenger.getServices());
+            group.add(passenger);
+        }
+
+        long bookingStart = metrics.start();
+        int[] seats = airline.bookGroup(flight, group, required(params, "method"));
+        if (seats == null) {
+            metrics.bookingFailed();
+            String soldOut = soldOut(flight, groupServices);
+            sendJson(exchange, 409, error(soldOut != null ? soldOut + " is sold out; nothing was booked"
+                    : "Group could not be booked; nothing was booked"));
+            return;
+        }
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < group.size(); i++) {
+            ApiBooking booking = new ApiBooking(group.get(i), flight);
+            booking.seat = seats[i];
+            booking.amount = flight.getPrice() + group.get(i).getServiceCost();
+            bookings.put(booking.handle, booking);
+            metrics.bookingCompleted(flight.getFlightNumber(), seats[i], booking.amount);
+            if (i > 0)
+                json.append(',');
+            json.append(bookingJson(booking));
+        }
+        metrics.record(Stage.BOOKING, bookingStart);
+        sendJson(exchange, 200, json.append(']').toString());
+    }
+
+    private void addService(HttpExchange exchange, ApiBooking booking, String code) throws IOException {
+        Service service = createService(code);
+        synchronized (booking) {
+            if (booking.seat != -1) {
+                sendJson(exchange, 409, error("Booking is already paid"));
+                return;
+            }
+            if (booking.flight.getServiceInventory().isSoldOut(service.getName())) {
+                sendJson(exchange, 409, error(service.getName() + " is sold out on this flight"));
+                return;
+            }
+            booking.passenger.addService(service);
+        }
+        sendJson(exchange, 200, bookingJson(booking));
+    }
+
+    static Service createService(String code) {
+        switch (code.toLowerCase()) {
+            case "vegetarian":
+                return new Meal("Vegetarian", Money.dollars(20));
+            case "non-vegetarian":
+                return new Meal("Non-Vegetarian", Money.dollars(25));
+            case "kids":
+                return new Meal("Kids", Money.dollars(15));
+            case "wifi":
+                return new WiFi();
+            case "baggage":
+                return new ExtraBaggage();
+            default:
+                throw new IllegalArgumentException("Unknown service: " + code);
+        }
+    }
+
+    private void pay(HttpExchange exchange, ApiBooking booking, String paymentMethod, String seatParam)
+            throws IOException {
+        long bookingStart = metrics.start();
+        synchronized (booking) {
+            if (booking.seat != -1) {
+                sendJson(exchange, 409, error("Booking is already paid"));
+                return;
+            }
+            if (bookings.get(booking.handle) != booking) { // Expired or cancelled while this request waited
+                sendJson(exchange, 404, error("Booking not found"));
+                return;
+            }
+            Flight flight = booking.flight;
+            int seat = seatParam == null ? firstFreeSeat(flight) : parseSeat(seatParam);
+
+            // The seat and services are held before the card is charged, so a client never pays for a seat
+            // it does not get; a declined payment gives them back
+            boolean held = seat != -1 && flight.holdSeat(booking.passenger, seat);
+            long paymentStart = metrics.record(Stage.BOOK_SEAT, bookingStart);
+            if (!held) {
+                metrics.bookingFailed();
+                String soldOut = soldOut(flight, booking.passenger.getServices());
+                sendJson(exchange, 409, error(soldOut != null ? soldOut + " is sold out on this flight"
+                        : "Failed to book seat"));
+                return;
+            }
+
+            long totalCost = flight.getPrice() + booking.passenger.getServiceCost();
+            Payment payment = new Payment(paymentMethod, totalCost);
+            boolean paid = payment.processPayment();
+            metrics.record(Stage.PAYMENT, paymentStart);
+            if (!paid) {
+                flight.releaseSeat(booking.passenger, seat);
+                metrics.paymentFailed();
+                sendJson(exchange, 402, error("Payment failed"));
+                return;
+            }
+            airline.bookHeldSeat(flight, booking.passenger, seat, totalCost);
+            booking.seat = seat;
+            paid(booking);
+            booking.amount = totalCost;
+            metrics.bookingCompleted(flight.getFlightNumber(), seat, totalCost);
+        }
+        metrics.record(Stage.BOOKING, bookingStart);
+        sendJson(exchange, 200, bookingJson(booking));
+    }
+
+    private void cancel(HttpExchange exchange, ApiBooking booking) throws IOException {
+        long cancelStart = metrics.start();
+        synchronized (booking) {
+            if (booking.seat != -1) {
+                if (!airline.cancelBooking(booking.flight, booking.passenger, booking.seat)) {
+                    sendJson(exchange, 409, error("Booking could not be cancelled"));
+                    return;
+                }
+                metrics.record(Stage.CANCEL, cancelStart);
+                metrics.bookingCancelled(booking.flight.getFlightNumber(), booking.seat);
+            }
+            drop(booking);
+        }
+        sendJson(exchange, 200, "{\"cancelled\":true}");
+    }
+
+    private static String soldOut(Flight flight, List<Service> services) {
+        for (Service service : services) {
+            if (flight.getServiceInventory().isSoldOut(service.getName()))
+                return service.getName();
+        }
+        return null;
+    }
+
+    private static int firstFreeSeat(Flight flight) {
+        boolean[] seats = flight.snapshotSeatAvailability();
+        for (int i = 0; i < seats.length; i++) {
+            if (!seats[i])
+                return i;
+        }
+        return -1;
+    }
+
+    // Seats are 1-based in the API, as in the GUI tables
+    private static int parseSeat(String seat) {
+        try {
+            return Integer.parseInt(seat) - 1;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid seat: " + seat);
+        }
+    }
+
+    private static String bookingJson(ApiBooking booking) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"id\":").append(quote(formatHandle(booking.handle)))
+                .append(",\"passengerId\":").append(quote(booking.passenger.getId()))
+                .append(",\"name\":").append(quote(booking.passenger.getName()))
+                .append(",\"flight\":").append(quote(booking.flight.getFlightNumber()))
+                .append(",\"seat\":").append(booking.seat == -1 ? "null" : String.valueOf(booking.seat + 1))
+                .append(",\"services\":[");
+        List<Service> services = booking.passenger.getServices();
+        for (int i = 0; i < services.size(); i++) {
+            if (i > 0)
+                json.append(',');
+            json.append("{\"name\":").append(quote(services.get(i).getName()))
+                    .append(",\"price\":").append(Money.toDecimal(services.get(i).getPrice())).append('}');
+        }
+        json.append("],\"serviceCost\":").append(Money.toDecimal(booking.passenger.getServiceCost()))
+                .append(",\"paid\":").append(booking.seat != -1)
+                .append(",\"amount\":").append(Money.toDecimal(booking.amount)).append('}');
+        return json.toString();
+    }
+
+    private static void appendFlight(StringBuilder json, Flight flight) {
+        json.append("{\"flightNumber\":").append(quote(flight.getFlightNumber()))
+                .append(",\"origin\":").append(quote(flight.getOrigin()))
+                .append(",\"destination\":").append(quote(flight.getDestination()))
+                .append(",\"dateTime\":").append(quote(flight.getDateTime()))
+                .append(",\"price\":").append(Money.toDecimal(flight.getPrice()))
+                .append(",\"totalSeats\":").append(flight.getTotalSeats())
+                .append(",\"availableSeats\":").append(flight.getAvailableSeats()).append('}');
+    }
+
+    static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message == null ? "" : message) + "}";
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    private static String[] pathSegments(HttpExchange exchange, String context) {
+        String rest = exchange.getRequestURI().getPath().substring(context.length());
+        List<String> segments = new ArrayList<>();
+        for (String segment : rest.split("/")) {
+            if (!segment.isEmpty())
+                segments.add(URLDecoder.decode(segment, StandardCharsets.UTF_8));
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    // May be called more than once per exchange (admission control reads them before the handler): the form
+    // body is put back after reading. Not cached as an exchange attribute: the JDK 17 server keeps those in
+    // the HttpContext, shared by every request to it.
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            exchange.setStreams(new ByteArrayInputStream(body), null);
+            parseForm(new String(body, StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty())
+            return;
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        send(exchange, status, "application/json", json);
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
+
+// Fleet Generator Class (deterministic, seedable, parallel test data)
+//
+// Every flight is derived only from (seed, index), so the same seed produces the same fleet no matter
+// how many threads generate it. Flight numbers are "F" + index, which makes them unique by construction.
+//
+//   java FleetGenerator <flights> [seed] [file]    writes flights and bookings as CSV (or stdout)
+class FleetGenerator {
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int CHUNK = 8192;
+
+    // Airports ranked by traffic; picked with Zipf-like weights so hubs get most routes
+    private static final String[] AIRPORTS = { "ATL", "DFW", "DEN", "ORD", "LAX", "JFK", "LHR", "CDG", "DXB",
+            "HND", "SIN", "FRA", "AMS", "IST", "MAD", "BCN", "SFO", "SEA", "MIA", "YYZ", "DEL", "BOM", "SYD",
+            "GRU", "MEX", "BOS", "MUC", "ZRH", "VIE", "DOH" };
+    private static final double[] AIRPORT_CDF = zipfCdf(AIRPORTS.length);
+
+    // Departure hour weights: morning and evening banks
+    private static final double[] HOUR_CDF = cdf(new double[] { 1, 0, 0, 0, 1, 3, 8, 10, 9, 7, 5, 4, 4, 4, 5,
+            6, 8, 9, 8, 6, 4, 3, 2, 1 });
+
+    private static final String[] FIRST_NAMES = { "James", "Mary", "Wei", "Fatima", "Carlos", "Aiko", "Olga",
+            "Liam", "Priya", "Noah", "Amara", "Lucas", "Sofia", "Mateo", "Yuki", "Elena", "Omar", "Chloe" };
+    private static final String[] LAST_NAMES = { "Smith", "Garcia", "Chen", "Khan", "Muller", "Rossi",
+            "Tanaka", "Silva", "Novak", "Patel", "Kim", "Dubois", "Ivanova", "Okafor", "Jensen", "Lopez" };
+
+    private final long seed;
+    private final LocalDateTime firstDeparture;
+    private final int days;
+
+    public FleetGenerator(long seed) {
+        this(seed, LocalDate.now().plusDays(1).atStartOfDay(), 90);
+    }
+
+    public FleetGenerator(long seed, LocalDateTime firstDeparture, int days) {
+        this.seed = seed;
+        this.firstDeparture = firstDeparture;
+        this.days = days;
+    }
+
+    public static String flightNumber(long index) {
+        return index < 1000 ? String.format("F%04d", index) : "F" + index;
+    }
+
+    // A flight on a random route and departure time
+    public Flight flight(long index) {
+        SplittableRandom random = random(index);
+        int from = pick(random, AIRPORT_CDF);
+        int to = pick(random, AIRPORT_CDF);
+        if (to == from)
+            to = (from + 1 + random.nextInt(AIRPORTS.length - 1)) % AIRPORTS.length;
+        LocalDateTime departure = firstDeparture.plusDays(random.nextInt(days))
+                .plusHours(pick(random, HOUR_CDF)).plusMinutes(5 * random.nextInt(12));
+        return flight(random, index, AIRPORTS[from], AIRPORTS[to], departure.format(DATE_TIME));
+    }
+
+    // A flight on a given route and departure time, as requested from the Flights panel
+    public Flight flight(long index, String origin, String destination, String dateTime) {
+        return flight(random(index), index, origin, destination, dateTime);
+    }
+
+    private Flight flight(SplittableRandom random, long index, String origin, String destination,
+            String dateTime) {
+        // Aircraft mix: regional jets, narrow-bodies and wide-bodies
+        double aircraft = random.nextDouble();
+        int seats;
+        double baseFare;
+        if (aircraft < 0.25) {
+            seats = 50 + random.nextInt(27);
+            baseFare = 120;
+        } else if (aircraft < 0.80) {
+            seats = 150 + random.nextInt(40);
+            baseFare = 220;
+        } else {
+            seats = 250 + random.nextInt(151);
+            baseFare = 650;
+        }
+        // Log-normal fare spread around the base fare
+        long price = Money.dollars(Math.round(Math.max(50, Math.min(2500, baseFare * Math.exp(0.35 * gaussian(random))))));
+        return new Flight(flightNumber(index), origin, destination, seats, price, dateTime);
+    }
+
+    // Books a realistic share of the flight's seats (load factor around 80%) through the airline, or
+    // directly on the flight when airline is null
+    public int book(Airline airline, Flight flight, long index) {
+        SplittableRandom random = random(~index);
+        int seats = flight.getTotalSeats();
+        double loadFactor = Math.min(1.0, 0.55 + 0.5 * (random.nextDouble() + random.nextDouble()
+                + random.nextDouble()) / 3);
+        int toBook = (int) (seats * loadFactor);
+
+        // Fill a random subset of seats: partial Fisher-Yates over the seat indices
+        int[] order = new int[seats];
+        for (int i = 0; i < seats; i++)
+            order[i] = i;
+        int booked = 0;
+        for (int i = 0; i < toBook; i++) {
+            int j = i + random.nextInt(seats - i);
+            int seat = order[j];
+            order[j] = order[i];
+            Passenger passenger = new Passenger(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+            double services = random.nextDouble();
+            if (services < 0.30)
+                passenger.addService(new WiFi());
+            if (random.nextDouble() < 0.20)
+                passenger.addService(new ExtraBaggage());
+            if (services > 0.60) // Priced by type, as when booked through the API
+                passenger.addService(
+                        BookingApiServer.createService(random.nextInt(4) == 0 ? "vegetarian" : "non-vegetarian"));
+            if (airline == null ? flight.bookSeat(passenger, seat) : airline.bookSeat(flight, passenger, seat))
+                booked++;
+        }
+        return booked;
+    }
+
+    // Generates flights [first, first + count) in parallel and hands them to the sink in index order. Without
+    // an airline each flight is booked before it reaches the sink; with one, it is booked through the airline
+    // after the sink has added it, so its bookings follow it (also in the change feed). Only one chunk is
+    // held in memory at a time.
+    public void generate(long first, long count, boolean withBookings, Airline airline, Consumer<Flight> sink) {
+        Flight[] chunk = new Flight[(int) Math.min(CHUNK, Math.max(count, 1))];
+        for (long offset = 0; offset < count; offset += chunk.length) {
+            long base = first + offset;
+            int size = (int) Math.min(chunk.length, count - offset);
+            IntStream.range(0, size).parallel().forEach(i -> {
+                chunk[i] = flight(base + i);
+                if (withBookings && airline == null)
+                    book(null, chunk[i], base + i);
+            });
+            for (int i = 0; i < size; i++)
+                sink.accept(chunk[i]);
+            if (withBookings && airline != null)
+                IntStream.range(0, size).parallel().forEach(i -> book(airline, chunk[i], base + i));
+            Arrays.fill(chunk, null);
+        }
+    }
+
+    // Streams count new flights (and optionally their bookings) into the airline
+    public void populate(Airline airline, long count, boolean withBookings) {
+        long first = airline.reserveFlightNumbers(count);
+        generate(first, count, withBookings, airline, airline::addFlight);
+    }
+
+    // CSV: "F,number,origin,destination,seats,price,dateTime" rows, each followed by
+    // "B,number,seat,name,services" rows for its bookings
+    public void writeTo(Writer out, long first, long count) throws IOException {
+        IOException[] failure = new IOException[1];
+        generate(first, count, true, null, flight -> {
+            if (failure[0] != null)
+                return;
+            try {
+                out.write("F," + flight.getFlightNumber() + "," + flight.getOrigin() + ","
+                        + flight.getDestination() + "," + flight.getTotalSeats() + "," + Money.toDecimal(flight.getPrice()) + ","
+                        + flight.getDateTime() + "\n");
+                for (int seat = 0; seat < flight.getTotalSeats(); seat++) {
+                    Passenger passenger = flight.getPassengerAt(seat);
+                    if (passenger != null) {
+                        StringBuilder services = new StringBuilder();
+                        for (Service service : passenger.getServices()) {
+                            if (services.length() > 0)
+                                services.append('|');
+                            services.append(service.getName());
+                        }
+                        out.write("B," + flight.getFlightNumber() + "," + (seat + 1) + "," + passenger.getName()
+                                + "," + services + "\n");
+                    }
+                }
+            } catch (IOException ex) {
+                failure[0] = ex;
+            }
+        });
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    private SplittableRandom random(long index) {
+        return new SplittableRandom(mix(seed ^ mix(index)));
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static double gaussian(SplittableRandom random) {
+        double u1 = 1.0 - random.nextDouble();
+        double u2 = random.nextDouble();
+        return Math.sqrt(-2 * Math.log(u1)) * Math.cos(2 * Math.PI * u2);
+    }
+
+    private static int pick(SplittableRandom random, double[] cdf) {
+        double u = random.nextDouble();
+        int i = Arrays.binarySearch(cdf, u);
+        return Math.min(i >= 0 ? i + 1 : -i - 1, cdf.length - 1);
+    }
+
+    private static double[] zipfCdf(int n) {
+        double[] weights = new double[n];
+        for (int i = 0; i < n; i++)
+            weights[i] = 1.0 / (i + 1);
+        return cdf(weights);
+    }
+
+    private static double[] cdf(double[] weights) {
+        double total = 0;
+        for (double w : weights)
+            total += w;
+        double[] cdf = new double[weights.length];
+        double running = 0;
+        for (int i = 0; i < weights.length; i++) {
+            running += weights[i];
+            cdf[i] = running / total;
+        }
+        return cdf;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long count = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        FleetGenerator generator = new FleetGenerator(seed);
+        long start = System.nanoTime();
+        try (Writer out = args.length > 2
+                ? Files.newBufferedWriter(Paths.get(args[2]), StandardCharsets.UTF_8)
+                : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)) {
+            generator.writeTo(out, 1000, count);
+        }
+        System.err.printf("Generated %d flights in %.1f s%n", count, (System.nanoTime() - start) / 1e9);
+    }
+}
+
+// Id Benchmark: java IdBenchmark [ids] -- IdGenerator against the previous UUID.randomUUID().toString()
+class IdBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int ids = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        IdGenerator generator = new IdGenerator(1);
+        for (int round = 0; round < 3; round++) {
+            long uuid = run(threads, ids, () -> UUID.randomUUID().toString().length());
+            long snowflake = run(threads, ids, () -> (int) generator.next());
+            System.out.printf("round %d (%d threads): UUID %.1f ns/id, IdGenerator %.1f ns/id%n",
+                    round, threads, (double) uuid / ids, (double) snowflake / ids);
+        }
+        // A 36-char UUID String is a 24-byte String plus a 16-byte-header byte[36]: 80 bytes with a
+        // compressed reference, against the 8 bytes of a long field
+        System.out.println("Per-passenger id storage: UUID String ~80 bytes, long 8 bytes");
+    }
+
+    private static long run(int threads, int ids, IntSupplier next) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        int perThread = ids / threads;
+        long[] sink = new long[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int slot = t;
+            workers[t] = new Thread(() -> {
+                long acc = 0;
+                for (int i = 0; i < perThread; i++)
+                    acc += next.getAsInt();
+                sink[slot] = acc;
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        return System.nanoTime() - start;
+    }
+}
+
+// Booking Archive Class (immutable, compressed segment files for departed flights)
+//
+// Segments are partitioned by departure date: <dir>/<yyyy-MM-dd>/segment-<n>.seg. Each segment holds its
+// flights sorted by flight number in independently deflated blocks, followed by a sparse index (first
+// flight number and file offset of every block) and a fixed footer:
+//
+//   [block]... [index: int count, (UTF firstFlight, long offset, int length)...] [long indexOffset, int MAGIC]
+//
+// A point lookup binary-searches the sparse index and inflates a single block; scans stream block by block.
+// Segments are written to a temporary file and atomically moved into place, and never modified afterwards.
+class BookingArchive {
+    private static final int MAGIC = 0x41524332; // "ARC2": prices in long cents
+    private static final int FLIGHTS_PER_BLOCK = 64;
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Path directory;
+    private final Map<Path, SegmentIndex> indexes = new ConcurrentHashMap<>();
+
+    private static class SegmentIndex {
+        final String[] firstFlights;
+        final long[] offsets;
+        final int[] lengths;
+
+        SegmentIndex(String[] firstFlights, long[] offsets, int[] lengths) {
+            this.firstFlights = firstFlights;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+    }
+
+    public BookingArchive(Path directory) {
+        this.directory = directory;
+    }
+
+    public static LocalDateTime departureOf(Flight flight) {
+        try {
+            return LocalDateTime.parse(flight.getDateTime(), DATE_TIME);
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    // Writes the flights (all departing on one date) as a new segment of that date's partition
+    public synchronized Path writeSegment(LocalDate date, List<Flight> flights) throws IOException {
+        Path partition = directory.resolve(date.toString());
+        Files.createDirectories(partition);
+        int sequence = 0;
+        Path segment;
+        do {
+            segment = partition.resolve(String.format("segment-%05d.seg", sequence++));
+        } while (Files.exists(segment));
+
+        List<Flight> sorted = new ArrayList<>(flights);
+        sorted.sort(Comparator.comparing(Flight::getFlightNumber));
+        Path temp = partition.resolve(segment.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            List<String> firstFlights = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            List<Integer> lengths = new ArrayList<>();
+            long offset = 0;
+            for (int start = 0; start < sorted.size(); start += FLIGHTS_PER_BLOCK) {
+                List<Flight> block = sorted.subList(start, Math.min(sorted.size(), start + FLIGHTS_PER_BLOCK));
+                byte[] compressed = compress(block);
+                out.write(compressed);
+                firstFlights.add(block.get(0).getFlightNumber());
+                offsets.add(offset);
+                lengths.add(compressed.length);
+                offset += compressed.length;
+            }
+            out.writeInt(firstFlights.size());
+            for (int i = 0; i < firstFlights.size(); i++) {
+                out.writeUTF(firstFlights.get(i));
+                out.writeLong(offsets.get(i));
+                out.writeInt(lengths.get(i));
+            }
+            out.writeLong(offset);
+            out.writeInt(MAGIC);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, segment, StandardCopyOption.ATOMIC_MOVE);
+        return segment;
+    }
+
+    // Point lookup; pass the departure date when known to search a single partition
+    public Flight find(String flightNumber, LocalDate date) throws IOException {
+        for (Path segment : segments(date, date)) {
+            SegmentIndex index = index(segment);
+            int block = Arrays.binarySearch(index.firstFlights, flightNumber);
+            if (block < 0)
+                block = -block - 2; // The block whose first flight precedes the one we want
+            if (block < 0)
+                continue;
+            for (Flight flight : readBlock(segment, index, block)) {
+                if (flight.getFlightNumber().equals(flightNumber))
+                    return flight;
+            }
+        }
+        return null;
+    }
+
+    // Streams every archived flight departing between from and to (inclusive; null for unbounded)
+    public void scan(LocalDate from, LocalDate to, Consumer<Flight> consumer) throws IOException {
+        for (Path segment : segments(from, to)) {
+            SegmentIndex index = index(segment);
+            for (int block = 0; block < index.offsets.length; block++) {
+                readBlock(segment, index, block).forEach(consumer);
+            }
+        }
+    }
+
+    private List<Path> segments(LocalDate from, LocalDate to) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+            return segments;
+        List<Path> partitions = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path partition : stream) {
+                LocalDate date;
+                try {
+                    date = LocalDate.parse(partition.getFileName().toString());
+                } catch (DateTimeParseException ex) {
+                    continue;
+                }
+                if ((from == null || !date.isBefore(from)) && (to == null || !date.isAfter(to)))
+                    partitions.add(partition);
+            }
+        }
+        Collections.sort(partitions);
+        for (Path partition : partitions) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(partition, "*.seg")) {
+                List<Path> files = new ArrayList<>();
+                stream.forEach(files::add);
+                Collections.sort(files);
+                segments.addAll(files);
+            }
+        }
+        return segments;
+    }
+
+    private SegmentIndex index(Path segment) throws IOException {
+        SegmentIndex index = indexes.get(segment);
+        if (index != null)
+            return index;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer footer = ByteBuffer.allocate(12);
+            channel.read(footer, size - 12);
+            footer.flip();
+            long indexOffset = footer.getLong();
+            if (footer.getInt() != MAGIC)
+                throw new IOException("Not an archive segment: " + segment);
+            ByteBuffer buffer = ByteBuffer.allocate((int) (size - 12 - indexOffset));
+            channel.read(buffer, indexOffset);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+            int count = in.readInt();
+            String[] firstFlights = new String[count];
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                firstFlights[i] = in.readUTF();
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+            }
+            index = new SegmentIndex(firstFlights, offsets, lengths);
+        }
+        indexes.put(segment, index);
+        return index;
+    }
+
+    private static byte[] compress(List<Flight> flights) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(flights.size());
+            for (Flight flight : flights) {
+                out.writeUTF(flight.getFlightNumber());
+                out.writeUTF(flight.getOrigin());
+                out.writeUTF(flight.getDestination());
+                out.writeUTF(flight.getDateTime());
+                out.writeInt(flight.getTotalSeats());
+                out.writeLong(flight.getPrice());
+                List<Integer> seats = new ArrayList<>();
+                for (int seat = 0; seat < flight.getTotalSeats(); seat++) {
+                    if (flight.getPassengerAt(seat) != null)
+                        seats.add(seat);
+                }
+                out.writeInt(seats.size());
+                for (int seat : seats) {
+                    Passenger passenger = flight.getPassengerAt(seat);
+                    out.writeInt(seat);
+                    out.writeLong(passenger.getIdValue());
+                    out.writeUTF(passenger.getName());
+                    out.writeInt(passenger.getServices().size());
+                    for (Service service : passenger.getServices()) {
+                        out.writeUTF(service.getName());
+                        out.writeLong(service.getPrice());
+                    }
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<Flight> readBlock(Path segment, SegmentIndex index, int block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(index.lengths[block]);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer, index.offsets[block] + buffer.position()) >= 0) {
+                // Keep reading until the block is complete
+            }
+        }
+        List<Flight> flights = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(buffer.array())))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String flightNumber = in.readUTF();
+                String origin = in.readUTF();
+                String destination = in.readUTF();
+                String dateTime = in.readUTF();
+                int totalSeats = in.readInt();
+                long price = in.readLong();
+                Flight flight = new Flight(flightNumber, origin, destination, totalSeats, price, dateTime);
+                int bookings = in.readInt();
+                for (int b = 0; b < bookings; b++) {
+                    int seat = in.readInt();
+                    long id = in.readLong();
+                    Passenger passenger = new Passenger(in.readUTF(), id);
+                    int services = in.readInt();
+                    for (int s = 0; s < services; s++) {
+                        passenger.addService(restoreService(in.readUTF(), in.readLong()));
+                    }
+                    flight.restoreSeat(passenger, seat);
+                }
+                flights.add(flight);
+            }
+        }
+        return flights;
+    }
+
+    private static Service restoreService(String name, long price) {
+        if (name.equals("Wi-Fi"))
+            return new WiFi();
+        if (name.equals("Extra Baggage"))
+            return new ExtraBaggage();
+        return new Meal(name.endsWith(" Meal") ? name.substring(0, name.length() - 5) : name, price);
+    }
+}
+
+// Change Event Class (one decoded record of the change feed)
+//
+// Record layout, big-endian: int length (of everything after it), long offset, long millis, byte type,
+// UTF flightNumber, then by type:
+//   FLIGHT_ADDED     UTF origin, UTF destination, UTF dateTime, int totalSeats, long price
+//   BOOKED           int seat, long passengerId, UTF name, short serviceCount, UTF service..., long paid
+//   CANCELLED        int seat, long passengerId, long refund
+//   FLIGHT_ARCHIVED  (nothing more)
+// Amounts are cents.
+class ChangeEvent {
+    enum Type {
+        FLIGHT_ADDED, BOOKED, CANCELLED, FLIGHT_ARCHIVED
+    }
+
+    final long offset;
+    final long millis;
+    final Type type;
+    final String flightNumber;
+    String origin;
+    String destination;
+    String dateTime;
+    int totalSeats;
+    int seat = -1;
+    long passengerId;
+    String passengerName;
+    List<String> services = Collections.emptyList();
+    long amount; // Price, amount paid or amount refunded, by type
+
+    ChangeEvent(long offset, long millis, Type type, String flightNumber) {
+        this.offset = offset;
+        this.millis = millis;
+        this.type = type;
+        this.flightNumber = flightNumber;
+    }
+
+    static byte[] flightAdded(Flight flight) {
+        return encode(Type.FLIGHT_ADDED, flight.getFlightNumber(), out -> {
+            out.writeUTF(flight.getOrigin());
+            out.writeUTF(flight.getDestination());
+            out.writeUTF(flight.getDateTime());
+            out.writeInt(flight.getTotalSeats());
+            out.writeLong(flight.getPrice());
+        });
+    }
+
+    static byte[] booked(Booking booking) {
+        Passenger passenger = booking.getPassenger();
+        return encode(Type.BOOKED, booking.getFlight().getFlightNumber(), out -> {
+            out.writeInt(booking.getSeat());
+            out.writeLong(passenger.getIdValue());
+            out.writeUTF(passenger.getName());
+            List<Service> services = passenger.getServices();
+            out.writeShort(services.size());
+            for (Service service : services)
+                out.writeUTF(service.getName());
+            out.writeLong(booking.getPaid());
+        });
+    }
+
+    static byte[] cancelled(Flight flight, Passenger passenger, int seat, long refund) {
+        return encode(Type.CANCELLED, flight.getFlightNumber(), out -> {
+            out.writeInt(seat);
+            out.writeLong(passenger.getIdValue());
+            out.writeLong(refund);
+        });
+    }
+
+    static byte[] flightArchived(Flight flight) {
+        return encode(Type.FLIGHT_ARCHIVED, flight.getFlightNumber(), out -> {
+        });
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // The offset is left 0 and filled in by the feed's writer, which decides the order
+    private static byte[] encode(Type type, String flightNumber, Body body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeLong(0);
+            out.writeLong(System.currentTimeMillis());
+            out.writeByte(type.ordinal());
+            out.writeUTF(flightNumber);
+            body.write(out);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex); // Not thrown by in-memory streams
+        }
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - 4);
+        return record;
+    }
+
+    static ChangeEvent decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 4, record.length - 4));
+        long offset = in.readLong();
+        long millis = in.readLong();
+        Type type = Type.values()[in.readByte()];
+        ChangeEvent event = new ChangeEvent(offset, millis, type, in.readUTF());
+        switch (type) {
+            case FLIGHT_ADDED:
+                event.origin = in.readUTF();
+                event.destination = in.readUTF();
+                event.dateTime = in.readUTF();
+                event.totalSeats = in.readInt();
+                event.amount = in.readLong();
+                break;
+            case BOOKED:
+                event.seat = in.readInt();
+                event.passengerId = in.readLong();
+                event.passengerName = in.readUTF();
+                int count = in.readShort();
+                event.services = new ArrayList<>(count);
+                for (int i = 0; i < count; i++)
+                    event.services.add(in.readUTF());
+                event.amount = in.readLong();
+                break;
+            case CANCELLED:
+                event.seat = in.readInt();
+                event.passengerId = in.readLong();
+                event.amount = in.readLong();
+                break;
+            default:
+                break;
+        }
+        return event;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(128).append(offset).append(' ').append(Instant.ofEpochMilli(millis))
+                .append(' ').append(type).append(' ').append(flightNumber);
+        switch (type) {
+            case FLIGHT_ADDED:
+                sb.append(' ').append(origin).append('-').append(destination).append(' ').append(dateTime)
+                        .append(" seats=").append(totalSeats).append(" price=").append(Money.format(amount));
+                break;
+            case BOOKED:
+                sb.append(" seat=").append(seat + 1).append(" passenger=").append(IdGenerator.format(passengerId))
+                        .append(" name=").append(passengerName).append(" services=").append(services)
+                        .append(" paid=").append(Money.format(amount));
+                break;
+            case CANCELLED:
+                sb.append(" seat=").append(seat + 1).append(" passenger=").append(IdGenerator.format(passengerId))
+                        .append(" refund=").append(Money.format(amount));
+                break;
+            default:
+                break;
+        }
+        return sb.toString();
+    }
+}
+
+// Change Feed Class (ordered, resumable change-data-capture stream of flight and booking changes)
+//
+// Domain changes are encoded on the calling thread and handed to a bounded queue; a single writer thread
+// drains it in batches, assigns consecutive offsets, and appends the length-prefixed records to rolling
+// segment files <dir>/<first offset, 20 digits>.cdc. When the writer falls behind the queue fills up and
+// publishers wait for it (backpressure), so no change is dropped. Consumers never touch the queue: they tail
+// the files with ChangeFeedTail, locally or through the optional TCP server, so a slow consumer cannot slow
+// bookings down.
+//
+// TCP protocol: the client sends the offset to start from as a long (-1 for new changes only) and then
+// receives records in the file format, forever.
+class ChangeFeed {
+    private static final int MAX_BATCH = 4096;
+    static final String SUFFIX = ".cdc";
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final BlockingQueue<byte[]> queue;
+    private final Thread writer;
+    private FileChannel segment; // Writer thread only, after construction
+    private long segmentFirst; // First offset of the current segment, which names its file
+    private long segmentSize;
+    private long nextOffset;
+    private volatile long writtenOffset; // Every offset below this is in the files
+    private volatile boolean closed;
+    private ServerSocket server;
+    private ExecutorService subscribers;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder writeFailures = new LongAdder();
+    private final LongAdder reopenFailures = new LongAdder();
+    private final LongAdder acceptFailures = new LongAdder();
+    private final AtomicInteger connections = new AtomicInteger();
+    // Set while writes are being retried; a failure is logged when this turns on and again when it turns off,
+    // the attempts in between are only counted
+    private volatile boolean writeFailing;
+    private volatile boolean acceptFailing;
+
+    // Enabled by -Dcdc.dir (segment size from -Dcdc.segment.bytes, queue length from -Dcdc.queue, TCP server on
+    // -Dcdc.port); returns null when the feed is not configured
+    static ChangeFeed open() {
+        String dir = System.getProperty("cdc.dir");
+        if (dir == null)
+            return null;
+        try {
+            ChangeFeed feed = new ChangeFeed(Paths.get(dir), Long.getLong("cdc.segment.bytes", 64L << 20),
+                    Integer.getInteger("cdc.queue", 65_536));
+            String port = System.getProperty("cdc.port");
+            if (port != null)
+                feed.startServer(Integer.parseInt(port));
+            Runtime.getRuntime().addShutdownHook(new Thread(feed::close, "cdc-shutdown"));
+            return feed;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot open change feed in " + dir, ex);
+        }
+    }
+
+    // Continues after the last complete record found in dir, dropping a torn one
+    public ChangeFeed(Path dir, long segmentBytes, int queueCapacity) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        Files.createDirectories(dir);
+        List<Path> segments = segments(dir);
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            Path last = segments.get(segments.size() - 1);
+            segmentFirst = firstOffset(last);
+            nextOffset = segmentFirst;
+            segment = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(12);
+            long size = segment.size();
+            while (segmentSize + 12 <= size) {
+                header.clear();
+                segment.read(header, segmentSize);
+                int length = header.getInt(0);
+                if (segmentSize + 4 + length > size)
+                    break;
+                nextOffset = header.getLong(4) + 1;
+                segmentSize += 4 + length;
+            }
+            segment.truncate(segmentSize);
+            segment.position(segmentSize);
+        }
+        writtenOffset = nextOffset;
+        writer = new Thread(this::writeLoop, "cdc-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void flightAdded(Flight flight) {
+        publish(ChangeEvent.flightAdded(flight));
+    }
+
+    public void booked(Booking booking) {
+        publish(ChangeEvent.booked(booking));
+    }
+
+    public void cancelled(Flight flight, Passenger passenger, int seat, long refund) {
+        publish(ChangeEvent.cancelled(flight, passenger, seat, refund));
+    }
+
+    public void flightArchived(Flight flight) {
+        publish(ChangeEvent.flightArchived(flight));
+    }
+
+    private void publish(byte[] record) {
+        published.increment();
+        if (queue.offer(record))
+            return;
+        waits.increment(); // The writer is behind: wait for room rather than drop the change
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(record);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    // Offset the next change will get
+    public long getWrittenOffset() {
+        return writtenOffset;
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                byte[] first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException ex) {
+                continue; // Only close() interrupts, and it wants the queue drained first
+            }
+            long batchStart = nextOffset;
+            long failedAttempts = 0;
+            while (true) {
+                try {
+                    // Records before nextOffset made it into a segment before a failed attempt
+                    write(batch.subList((int) (nextOffset - batchStart), batch.size()));
+                    break;
+                } catch (IOException ex) {
+                    // Keep the batch and retry: publishers wait instead of changes being lost
+                    writeFailures.increment();
+                    failedAttempts++;
+                    if (!writeFailing) {
+                        writeFailing = true;
+                        System.err.println("Change feed write failed, retrying every second: " + ex.getMessage());
+                    }
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ignored) {
+                        // Retry right away
+                    }
+                    try {
+                        reopen();
+                    } catch (IOException reopenFailure) {
+                        reopenFailures.increment();
+                    }
+                }
+            }
+            if (writeFailing) {
+                writeFailing = false;
+                System.err.println("Change feed writes recovered after " + failedAttempts + " failed attempts");
+            }
+            batch.clear();
+        }
+        try {
+            segment.close();
+        } catch (IOException ex) {
+            System.err.println("Closing change feed segment failed: " + ex.getMessage());
+        }
+    }
+
+    // One gathering write per segment touched by the batch
+    private void write(List<byte[]> batch) throws IOException {
+        long offset = nextOffset;
+        long size = segmentSize;
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        int pending = 0;
+        for (byte[] record : batch) {
+            if (size > 0 && size + record.length > segmentBytes) {
+                writeFully(buffers, pending);
+                segmentSize = size;
+                nextOffset = offset;
+                segment.force(false); // A rolled segment is complete and durable before tailers move on
+                segment.close();
+                openSegment(offset);
+                size = 0;
+                pending = 0;
+            }
+            ByteBuffer.wrap(record).putLong(4, offset++);
+            buffers[pending++] = ByteBuffer.wrap(record);
+            size += record.length;
+        }
+        writeFully(buffers, pending);
+        segmentSize = size;
+        nextOffset = offset;
+        writtenOffset = offset;
+        batches.increment();
+    }
+
+    private void writeFully(ByteBuffer[] buffers, int count) throws IOException {
+        int first = 0;
+        while (first < count) {
+            segment.write(buffers, first, count - first);
+            while (first < count && !buffers[first].hasRemaining())
+                first++;
+        }
+    }
+
+    private void openSegment(long firstOffset) throws IOException {
+        segment = FileChannel.open(dir.resolve(segmentName(firstOffset)), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentFirst = firstOffset;
+        segmentSize = 0;
+        nextOffset = firstOffset;
+    }
+
+    // After a failed write: cuts the current segment back to its last complete record, so a retry does not
+    // append part of the batch twice, and drops a segment that a failed roll created but never switched to
+    private void reopen() throws IOException {
+        if (segment.isOpen())
+            segment.close();
+        for (Path path : segments(dir)) {
+            if (firstOffset(path) > segmentFirst)
+                Files.delete(path);
+        }
+        segment = FileChannel.open(dir.resolve(segmentName(segmentFirst)), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        segment.truncate(segmentSize);
+        segment.position(segmentSize);
+    }
+
+    static String segmentName(long firstOffset) {
+        return String.format("%020d", firstOffset) + SUFFIX;
+    }
+
+    static long firstOffset(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return segments;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        Collections.sort(segments); // Zero-padded names sort by offset
+        return segments;
+    }
+
+    public void startServer(int port) throws IOException {
+        server = new ServerSocket(port);
+        subscribers = VirtualThreads.newExecutor();
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    if (acceptFailing) {
+                        acceptFailing = false;
+                        System.err.println("Change feed accepting subscribers again");
+                    }
+                    subscribers.execute(() -> serve(socket));
+                } catch (IOException ex) {
+                    if (server.isClosed())
+                        break;
+                    acceptFailures.increment();
+                    if (!acceptFailing) {
+                        acceptFailing = true;
+                        System.err.println("Change feed accept failed: " + ex.getMessage());
+                    }
+                }
+            }
+        }, "cdc-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server == null ? -1 : server.getLocalPort();
+    }
+
+    // Streams from the files, flushing whenever the subscriber has caught up
+    private void serve(Socket socket) {
+        connections.incrementAndGet();
+        try (Socket s = socket;
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024)) {
+            long from = in.readLong();
+            try (ChangeFeedTail tail = new ChangeFeedTail(dir, from < 0 ? writtenOffset : from)) {
+                while (!closed) {
+                    byte[] record = tail.nextRecord();
+                    if (record != null) {
+                        out.write(record);
+                    } else {
+                        out.flush();
+                        Thread.sleep(10);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            // Subscriber went away; it resumes from its last offset when it reconnects
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connections.decrementAndGet();
+        }
+    }
+
+    public void appendPrometheus(StringBuilder sb) {
+        sb.append("# HELP airline_cdc_published_total Changes published to the change feed\n");
+        sb.append("# TYPE airline_cdc_published_total counter\n");
+        sb.append("airline_cdc_published_total ").append(published.sum()).append('\n');
+        sb.append("# HELP airline_cdc_backpressure_waits_total Publishes that waited for the writer\n");
+        sb.append("# TYPE airline_cdc_backpressure_waits_total counter\n");
+        sb.append("airline_cdc_backpressure_waits_total ").append(waits.sum()).append('\n');
+        sb.append("# HELP airline_cdc_batches_total Batches written to the segment files\n");
+        sb.append("# TYPE airline_cdc_batches_total counter\n");
+        sb.append("airline_cdc_batches_total ").append(batches.sum()).append('\n');
+        sb.append("# HELP airline_cdc_write_failures_total Failed segment writes, each retried a second later\n");
+        sb.append("# TYPE airline_cdc_write_failures_total counter\n");
+        sb.append("airline_cdc_write_failures_total ").append(writeFailures.sum()).append('\n');
+        sb.append("# HELP airline_cdc_reopen_failures_total Failed attempts to reopen a segment before a retry\n");
+        sb.append("# TYPE airline_cdc_reopen_failures_total counter\n");
+        sb.append("airline_cdc_reopen_failures_total ").append(reopenFailures.sum()).append('\n');
+        sb.append("# HELP airline_cdc_write_failing 1 while the writer is retrying a failed write\n");
+        sb.append("# TYPE airline_cdc_write_failing gauge\n");
+        sb.append("airline_cdc_write_failing ").append(writeFailing ? 1 : 0).append('\n');
+        sb.append("# HELP airline_cdc_accept_failures_total Failed subscriber accepts\n");
+        sb.append("# TYPE airline_cdc_accept_failures_total counter\n");
+        sb.append("airline_cdc_accept_failures_total ").append(acceptFailures.sum()).append('\n');
+        sb.append("# HELP airline_cdc_queue_depth Changes waiting for the writer\n");
+        sb.append("# TYPE airline_cdc_queue_depth gauge\n");
+        sb.append("airline_cdc_queue_depth ").append(queue.size()).append('\n');
+        sb.append("# HELP airline_cdc_next_offset Offset of the next change\n");
+        sb.append("# TYPE airline_cdc_next_offset gauge\n");
+        sb.append("airline_cdc_next_offset ").append(writtenOffset).append('\n');
+        sb.append("# HELP airline_cdc_subscribers Connected TCP subscribers\n");
+        sb.append("# TYPE airline_cdc_subscribers gauge\n");
+        sb.append("airline_cdc_subscribers ").append(connections.get()).append('\n');
+    }
+
+    // Writes everything already published, then stops
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (server != null) {
+                server.close();
+                subscribers.shutdownNow();
+            }
+            writer.join(10_000);
+        } catch (IOException ex) {
+            System.err.println("Closing change feed server failed: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Change Feed Tail Class (resumable reader that follows the change feed's segment files)
+//
+// Reads in large chunks and hands out whole records, moving to the next segment when the writer rolls.
+// nextRecord() returns null once it has caught up; call again later to pick up new changes.
+//
+//   java ChangeFeedTail <dir> [fromOffset]    prints changes as they happen
+class ChangeFeedTail implements Closeable {
+    private final Path dir;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+    private long nextOffset;
+
+    public ChangeFeedTail(Path dir, long fromOffset) {
+        this.dir = dir;
+        this.nextOffset = Math.max(0, fromOffset);
+        buffer.limit(0);
+    }
+
+    // The whole record, length prefix included, or null when there is nothing new yet
+    public byte[] nextRecord() throws IOException {
+        while (true) {
+            if (channel == null && !openSegment())
+                return null;
+            if (buffer.remaining() >= 4) {
+                int length = buffer.getInt(buffer.position());
+                if (buffer.remaining() >= 4 + length) {
+                    byte[] record = new byte[4 + length];
+                    buffer.get(record);
+                    long offset = ByteBuffer.wrap(record).getLong(4);
+                    if (offset < nextOffset)
+                        continue; // Before the offset we resume from
+                    nextOffset = offset + 1;
+                    return record;
+                }
+                if (4 + length > buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    larger.put(buffer).flip();
+                    buffer = larger;
+                }
+            }
+            if (fill() > 0)
+                continue;
+            // Caught up with this segment; move on only once the writer has rolled to the next one
+            Path next = dir.resolve(ChangeFeed.segmentName(nextOffset));
+            if (!Files.exists(next) || fill() > 0)
+                return null;
+            channel.close();
+            channel = FileChannel.open(next, StandardOpenOption.READ);
+            buffer.clear().limit(0);
+        }
+    }
+
+    public ChangeEvent next() throws IOException {
+        byte[] record = nextRecord();
+        return record == null ? null : ChangeEvent.decode(record);
+    }
+
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    private int fill() throws IOException {
+        buffer.compact();
+        int read = channel.read(buffer);
+        buffer.flip();
+        return read;
+    }
+
+    // The segment holding nextOffset, or the oldest one when older segments were removed
+    private boolean openSegment() throws IOException {
+        List<Path> segments = ChangeFeed.segments(dir);
+        if (segments.isEmpty())
+            return false;
+        Path start = segments.get(0);
+        for (Path segment : segments) {
+            if (ChangeFeed.firstOffset(segment) <= nextOffset)
+                start = segment;
+        }
+        channel = FileChannel.open(start, StandardOpenOption.READ);
+        buffer.clear().limit(0);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: java ChangeFeedTail <dir> [fromOffset]");
+            System.exit(1);
+        }
+        try (ChangeFeedTail tail = new ChangeFeedTail(Paths.get(args[0]),
+                args.length > 1 ? Long.parseLong(args[1]) : 0)) {
+            while (true) {
+                ChangeEvent event = tail.next();
+                if (event == null)
+                    Thread.sleep(50);
+                else
+                    System.out.println(event);
+            }
+        }
+    }
+}
+
+// Booking Benchmark: java BookingBenchmark [pairs] [block] -- compares bookSeat with metrics on and off.
+// The modes alternate in short blocks of bookings and the median of the per-pair differences is reported:
+// a collection or a descheduled core costs a single block far more than the difference being measured,
+// but rarely lands on the same pair twice.
+class BookingBenchmark {
+    public static void main(String[] args) {
+        int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int block = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        BookingMetrics off = new BookingMetrics(false);
+        BookingMetrics on = new BookingMetrics(true);
+        for (int i = 0; i < 50; i++) { // Warm-up
+            run(off, block);
+            run(on, block);
+        }
+        long[] offNanos = new long[pairs];
+        long[] difference = new long[pairs];
+        for (int pair = 0; pair < pairs; pair++) {
+            long offTime;
+            long onTime;
+            if (pair % 2 == 0) {
+                offTime = run(off, block);
+                onTime = run(on, block);
+            } else {
+                onTime = run(on, block);
+                offTime = run(off, block);
+            }
+            offNanos[pair] = offTime;
+            difference[pair] = onTime - offTime;
+        }
+        Arrays.sort(offNanos);
+        Arrays.sort(difference);
+        double base = (double) offNanos[pairs / 2] / block;
+        double extra = (double) difference[pairs / 2] / block;
+        System.out.printf("metrics off %.1f ns/booking, on %+.2f ns/booking (%.2f%% overhead), median of %d pairs%n",
+                base, extra, 100 * extra / base, pairs);
+    }
+
+    private static long run(BookingMetrics metrics, int bookings) {
+        int seatsPerFlight = 200;
+        Flight flight = null;
+        long begin = System.nanoTime();
+        for (int i = 0; i < bookings; i++) {
+            int seat = i % seatsPerFlight;
+            if (seat == 0) {
+                flight = new Flight("B" + i, "AAA", "BBB", seatsPerFlight, Money.dollars(100),
+                        "2030-01-01 00:00:00");
+            }
+            long start = metrics.start();
+            Passenger passenger = new Passenger("Passenger " + i);
+            if (seat % 5 < 2) // Wi-Fi is stocked for 40% of the seats
+                passenger.addService(new WiFi());
+            long paymentStart = metrics.record(Stage.SERVICES, start);
+
+            Payment payment = new Payment("Credit Card", flight.getPrice() + passenger.getServiceCost());
+            payment.processPayment();
+            long bookStart = metrics.record(Stage.PAYMENT, paymentStart);
+
+            if (!flight.bookSeat(passenger, seat))
+                throw new IllegalStateException("Booking failed: " + flight.getFlightNumber() + " seat " + seat);
+            metrics.record(Stage.BOOK_SEAT, bookStart);
+            metrics.bookingCompleted(flight.getFlightNumber(), seat, payment.getAmount());
+            metrics.record(Stage.BOOKING, start);
+        }
+        return System.nanoTime() - begin;
+    }
+}
+
+// Inventory Benchmark: java InventoryBenchmark [rounds] [threads] -- concurrent bookings racing for seats and
+// a scarce service; checks that no seat or service is ever oversold and that cancellations restore the stock
+class InventoryBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seats = 300;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long attempts = 0;
+        long begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            Flight flight = new Flight("I" + round, "AAA", "BBB", seats, Money.dollars(100), "2030-01-01 00:00:00");
+            ServiceInventory inventory = flight.getServiceInventory();
+            int wifiStock = inventory.getCapacity("Wi-Fi");
+            List<Passenger> booked = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    SplittableRandom random = new SplittableRandom(thread);
+                    for (int i = 0; i < seats; i++) {
+                        Passenger passenger = new Passenger("T" + thread + "-" + i);
+                        passenger.addService(new WiFi());
+                        if (flight.bookSeat(passenger, random.nextInt(seats)))
+                            booked.add(passenger);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            attempts += (long) threads * seats;
+
+            check(booked.size() == wifiStock, "round " + round + ": " + booked.size() + " Wi-Fi sold, stock " + wifiStock);
+            check(inventory.getRemaining("Wi-Fi") == 0, "round " + round + ": Wi-Fi count "
+                    + inventory.getRemaining("Wi-Fi") + " after selling out");
+            check(flight.getAvailableSeats() == seats - booked.size(), "round " + round + ": seat count "
+                    + flight.getAvailableSeats() + " for " + booked.size() + " bookings");
+            Set<Passenger> seated = new HashSet<>();
+            for (int seat = 0; seat < seats; seat++) {
+                Passenger passenger = flight.getPassengerAt(seat);
+                if (passenger != null)
+                    check(seated.add(passenger), "round " + round + ": passenger in two seats");
+            }
+            check(seated.size() == booked.size(), "round " + round + ": " + seated.size() + " seated, "
+                    + booked.size() + " booked");
+            for (int seat = 0; seat < seats; seat++) {
+                Passenger passenger = flight.getPassengerAt(seat);
+                if (passenger != null)
+                    flight.cancelSeat(passenger, seat);
+            }
+            check(inventory.getRemaining("Wi-Fi") == wifiStock && flight.getAvailableSeats() == seats,
+                    "round " + round + ": cancellations did not restore the stock");
+        }
+        long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+        System.out.printf("%d rounds, %d threads: no overselling, stock restored; %.1f ns/attempt%n", rounds,
+                threads, (double) elapsed / attempts);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.err.println("FAILED: " + message);
+            System.exit(1);
+        }
     }
+}
 
-    public List<Passenger> getPassengers() {
-        return passengers;
+// Group Booking Benchmark: java GroupBookingBenchmark [groups] [size] [pairs] -- books groups of `size`
+// passengers through Airline.bookGroup (one seat search, one payment, one batched ledger append and index
+// update) and the same passengers one at a time through Airline.bookSeat with a payment each. Runs alternate
+// between the two, with an in-memory ledger and with a journaled one, and the medians per passenger are
+// reported.
+class GroupBookingBenchmark {
+    public static void main(String[] args) throws IOException {
+        int groups = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int pairs = args.length > 2 ? Integer.parseInt(args[2]) : 15;
+        Path journal = Files.createTempFile("group-benchmark", ".ledger");
+        try {
+            for (Path ledger : Arrays.asList(null, journal)) {
+                for (int i = 0; i < 3; i++) { // Warm-up
+                    run(groups, size, true, ledger);
+                    run(groups, size, false, ledger);
+                }
+                long[] group = new long[pairs];
+                long[] single = new long[pairs];
+                for (int pair = 0; pair < pairs; pair++) {
+                    boolean groupFirst = pair % 2 == 0;
+                    if (groupFirst)
+                        group[pair] = run(groups, size, true, ledger);
+                    single[pair] = run(groups, size, false, ledger);
+                    if (!groupFirst)
+                        group[pair] = run(groups, size, true, ledger);
+                }
+                Arrays.sort(group);
+                Arrays.sort(single);
+                double passengers = (double) groups * size;
+                double groupNanos = group[pairs / 2] / passengers;
+                double singleNanos = single[pairs / 2] / passengers;
+                System.out.printf("%s ledger: group %.1f ns/passenger, one by one %.1f ns/passenger (%.2fx), "
+                        + "median of %d%n", ledger == null ? "in-memory" : "journaled", groupNanos, singleNanos,
+                        singleNanos / groupNanos, pairs);
+            }
+        } finally {
+            Files.deleteIfExists(journal);
+        }
     }
 
-    public boolean[] getSeatAvailability() {
-        return seatAvailability;
+    private static long run(int groups, int size, boolean asGroup, Path journal) throws IOException {
+        RevenueLedger ledger = new RevenueLedger();
+        if (journal != null) {
+            Files.deleteIfExists(journal);
+            ledger = new RevenueLedger(journal);
+            ledger.load();
+        }
+        Airline airline = new Airline("Benchmark", ledger);
+        int seatsPerFlight = 180;
+        int groupsPerFlight = seatsPerFlight / size;
+        Flight flight = null;
+        long begin = System.nanoTime();
+        for (int g = 0; g < groups; g++) {
+            if (g % groupsPerFlight == 0) {
+                flight = new Flight("G" + g, "AAA", "BBB", seatsPerFlight, Money.dollars(100),
+                        "2030-01-01 00:00:00");
+                airline.addFlight(flight);
+            }
+            List<Passenger> group = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                group.add(new Passenger((char) ('A' + i) + " Traveller"));
+            if (asGroup) {
+                if (airline.bookGroup(flight, group, "Credit Card") == null)
+                    throw new IllegalStateException("Group booking failed on " + flight.getFlightNumber());
+            } else {
+                int firstSeat = (g % groupsPerFlight) * size;
+                for (int i = 0; i < size; i++) {
+                    Passenger passenger = group.get(i);
+                    Payment payment = new Payment("Credit Card", flight.getPrice() + passenger.getServiceCost());
+                    if (!payment.processPayment()
+                            || !airline.bookSeat(flight, passenger, firstSeat + i, payment.getAmount()))
+                        throw new IllegalStateException("Booking failed on " + flight.getFlightNumber());
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        ledger.close();
+        return elapsed;
     }
+}
 
-    public boolean bookSeat(Passenger passenger, int seatIndex) {
-        if (seatIndex < 0 || seatIndex >= totalSeats || seatAvailability[seatIndex]) {
-            return false;
+// Ledger Benchmark: java LedgerBenchmark [entries] -- append rate and reconciliation scan speed
+class LedgerBenchmark {
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        RevenueLedger ledger = new RevenueLedger();
+        SplittableRandom random = new SplittableRandom(42);
+        long begin = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            String flightNumber = FleetGenerator.flightNumber(1000 + random.nextInt(10_000));
+            long amount = Money.dollars(50 + random.nextInt(2000));
+            if (random.nextInt(10) == 0)
+                ledger.refund(flightNumber, i, amount);
+            else
+                ledger.payment(flightNumber, i, amount);
+        }
+        long appended = System.nanoTime() - begin;
+        System.out.printf("append: %.1f ns/entry%n", (double) appended / entries);
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long net = ledger.net(Long.MIN_VALUE, Long.MAX_VALUE);
+            long scanned = System.nanoTime() - start;
+            start = System.nanoTime();
+            int mismatches = ledger.reconcile().size();
+            long reconciled = System.nanoTime() - start;
+            System.out.printf("round %d: net %s in %.1f ms (%.2f ns/entry), reconcile %d mismatches in %.1f ms%n",
+                    round, Money.format(net), scanned / 1e6, (double) scanned / entries, mismatches,
+                    reconciled / 1e6);
         }
-        passengers.add(passenger);
-        seatAvailability[seatIndex] = true;
-        availableSeats--;
-        return true;
     }
 }
 
-// Airline Class
-class Airline {
-    private String name;
-    private List<Flight> flights;
+// Search Benchmark: java -Xmx4g SearchBenchmark [passengers] [queries] -- type-ahead latency over a passenger
+// index of the given size (10 million by default). Names are drawn from about 1,600 first names and 64,000
+// surnames. Each query kind is run for random passengers and reported as p50/p99/max at a limit of 20:
+// a three-letter surname prefix, a full name, two partial words, a misspelled surname and a misspelled
+// full name, plain and with the prefix-or-fuzzy matching the passenger filter uses.
+class SearchBenchmark {
+    private static final String[] SYLLABLES = { "ka", "lo", "mi", "ra", "ten", "sa", "vo", "di", "ne", "ro",
+            "ba", "li", "chen", "ma", "to", "ri", "an", "el", "or", "us", "ki", "na", "be", "go", "ha", "ju",
+            "ze", "fi", "pa", "que", "wen", "xi", "yo", "da", "mo", "lu", "se", "ti", "ve", "no" };
 
-    public Airline(String name) {
-        this.name = name;
-        this.flights = new ArrayList<>();
+    public static void main(String[] args) {
+        int passengers = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+        SearchIndex<Integer> index = new SearchIndex<>(SearchBenchmark::name);
+        long begin = System.nanoTime();
+        for (int i = 0; i < passengers; i++) {
+            index.add(i);
+        }
+        System.out.printf("indexed %,d passengers in %.1f s%n", passengers, (System.nanoTime() - begin) / 1e9);
+
+        SplittableRandom random = new SplittableRandom(7);
+        String[] kinds = { "surname prefix", "full name", "two prefixes", "misspelled surname",
+                "misspelled full name" };
+        for (int round = 0; round < 2; round++) { // The first round warms up
+            for (int kind = 0; kind < kinds.length; kind++) {
+                long[] plain = new long[queries];
+                long[] fallback = new long[queries];
+                int found = 0;
+                for (int q = 0; q < queries; q++) {
+                    String query = query(kind, name(random.nextInt(passengers)));
+                    long start = System.nanoTime();
+                    found += index.search(query, 20, kind >= 3).size();
+                    plain[q] = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    index.searchPrefixOrFuzzy(query, 20, () -> false);
+                    fallback[q] = System.nanoTime() - start;
+                }
+                if (round == 0)
+                    continue;
+                Arrays.sort(plain);
+                Arrays.sort(fallback);
+                System.out.printf("%-20s %s: p50 %.1f us p99 %.1f us max %.1f us; prefix-or-fuzzy: p50 %.1f us "
+                        + "p99 %.1f us max %.1f us; %.1f results/query%n", kinds[kind], kind >= 3 ? "fuzzy" : "prefix",
+                        plain[queries / 2] / 1e3, plain[queries * 99 / 100] / 1e3, plain[queries - 1] / 1e3,
+                        fallback[queries / 2] / 1e3, fallback[queries * 99 / 100] / 1e3,
+                        fallback[queries - 1] / 1e3, (double) found / queries);
+            }
+        }
     }
 
-    public void addFlight(Flight flight) {
-        flights.add(flight);
+    static String name(int passenger) {
+        SplittableRandom random = new SplittableRandom(passenger * 0x9E3779B97F4A7C15L);
+        String first = SYLLABLES[random.nextInt(SYLLABLES.length)] + SYLLABLES[random.nextInt(SYLLABLES.length)];
+        String last = SYLLABLES[random.nextInt(SYLLABLES.length)] + SYLLABLES[random.nextInt(SYLLABLES.length)]
+                + SYLLABLES[random.nextInt(SYLLABLES.length)];
+        return first + " " + last;
     }
 
-    public List<Flight> getFlights() {
-        return flights;
+    private static String query(int kind, String name) {
+        String[] words = name.split(" ");
+        switch (kind) {
+            case 0:
+                return words[1].substring(0, 3);
+            case 1:
+                return name;
+            case 2:
+                return words[0].substring(0, Math.min(3, words[0].length())) + " " + words[1].substring(0, 4);
+            case 3:
+                return swap(words[1]);
+            default:
+                return words[0] + " " + swap(words[1]);
+        }
     }
 
-    public int getTotalPassengers() {
-        return flights.stream().mapToInt(flight -> flight.getPassengers().size()).sum();
+    // Swaps two adjacent letters in the middle of the word, the commonest typo
+    private static String swap(String word) {
+        int i = word.length() / 2;
+        return word.substring(0, i - 1) + word.charAt(i) + word.charAt(i - 1) + word.substring(i + 1);
     }
 }
 
-// Payment Class
-class Payment {
-    private String method;
-    private double amount;
+// Admission Benchmark: java AdmissionBenchmark [rate] [seconds] -- booking tail latency at 1x and 10x load,
+// with admission control on and off. Each booking is a real group booking behind a payment gateway that
+// takes 5 ms and has 2 connections (400 bookings/s), which is the capacity admission control protects.
+// Requests arrive open-loop at a fixed rate and are timed from their scheduled arrival, so a backlog shows
+// up in the latencies instead of slowing the load down.
+class AdmissionBenchmark {
+    private static final int CLIENTS = 100;
+    private static final int FLIGHTS = 50;
+    private static final int GATEWAY_CONNECTIONS = 2;
+    private static final long GATEWAY_MILLIS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        run(false, rate, seconds, 1, false); // Warm-up
+        for (boolean enabled : new boolean[] { true, false }) {
+            for (int multiplier : new int[] { 1, 10 }) {
+                run(enabled, rate * multiplier, seconds, multiplier, true);
+            }
+        }
+        System.exit(0);
+    }
 
-    public Payment(String method, double amount) {
-        this.method = method;
-        this.amount = amount;
+    private static void run(boolean enabled, int rate, int seconds, int multiplier, boolean report)
+            throws Exception {
+        Airline airline = new Airline("Benchmark", new RevenueLedger());
+        for (int i = 0; i < FLIGHTS; i++) {
+            airline.addFlight(new Flight("H" + i, "AAA", "BBB", 100_000, Money.dollars(100), "2030-01-01 00:00:00"));
+        }
+        Flight hot = airline.findFlight("H0");
+        AdmissionControl admission = new AdmissionControl(GATEWAY_CONNECTIONS);
+        Semaphore gateway = new Semaphore(GATEWAY_CONNECTIONS, true);
+        ExecutorService executor = VirtualThreads.newExecutor();
+
+        LatencyHistogram served = new LatencyHistogram();
+        LatencyHistogram refused = new LatencyHistogram();
+        Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        LongAdder others = new LongAdder(); // Requests for flights other than H0, and how many were served
+        LongAdder othersServed = new LongAdder();
+        SplittableRandom random = new SplittableRandom(42);
+        int total = rate * seconds;
+        CountDownLatch done = new CountDownLatch(total);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long begin = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            long scheduled = begin + i * interval;
+            long delay = scheduled - System.nanoTime();
+            if (delay > 0)
+                TimeUnit.NANOSECONDS.sleep(delay);
+            // Most of the traffic is a flash sale on H0; the rest is spread over the other flights
+            Flight flight = random.nextInt(10) < 8 ? hot : airline.findFlight("H" + (1 + random.nextInt(FLIGHTS - 1)));
+            String client = "client-" + random.nextInt(CLIENTS);
+            List<Passenger> group = Collections.singletonList(new Passenger("P" + i));
+            AdmissionControl.Work booking = () -> {
+                gateway.acquireUninterruptibly();
+                try {
+                    Thread.sleep(GATEWAY_MILLIS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    gateway.release();
+                }
+                airline.bookGroup(flight, group, "card");
+            };
+            executor.execute(() -> {
+                String outcome = "admitted";
+                try {
+                    if (enabled)
+                        admission.execute(client, flight.getFlightNumber(), 1, booking);
+                    else
+                        booking.run();
+                } catch (AdmissionControl.Rejected ex) {
+                    outcome = ex.outcome.label();
+                } catch (IOException ex) {
+                    outcome = "failed";
+                }
+                long latency = System.nanoTime() - scheduled;
+                (outcome.equals("admitted") ? served : refused).record(latency);
+                if (flight != hot) {
+                    others.increment();
+                    if (outcome.equals("admitted"))
+                        othersServed.increment();
+                }
+                outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+                done.countDown();
+            });
+        }
+        done.await();
+        executor.shutdown();
+        if (!report)
+            return;
+
+        System.out.printf("admission %s %2dx (%d/s): served p50 %.1f ms p99 %.1f ms p99.9 %.1f ms, "
+                + "refused p99 %.1f ms, other flights served %.0f%%, %s%n", enabled ? "on, " : "off,", multiplier,
+                rate, served.percentile(50) / 1e6, served.percentile(99) / 1e6, served.percentile(99.9) / 1e6,
+                refused.percentile(99) / 1e6, 100.0 * othersServed.sum() / others.sum(), new TreeMap<>(outcomes));
     }
+}
 
-    public String getMethod() {
-        return method;
+// API Benchmark: java ApiBenchmark [seconds] [connections] -- load run against BookingApiServer on localhost.
+// Each connection is a keep-alive HTTP/1.1 client looping over flight search, type-ahead search, service
+// stock, seat map, and a booking that is started, paid for and cancelled; admission control is off, so the
+// server itself is measured. A second phase floods the server with unpaid bookings from one client and reports
+// how many were refused and how many handles the server holds afterwards.
+class ApiBenchmark {
+    private static final String[] REQUESTS = { "GET /flights?origin=AAA&destination=BBB&date=2030-01-01",
+            "GET /search?q=trav&limit=10", "GET /flights/A1/services", "GET /flights/A2/seats",
+            "POST /bookings, POST /bookings/{id}/payment, DELETE /bookings/{id}" };
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        System.setProperty("admission.enabled", "false");
+        Airline airline = new Airline("Benchmark");
+        for (int i = 0; i < 200; i++) { // 10 flights per route, 500 seats each
+            String origin = i % 20 == 0 ? "AAA" : "O" + i % 20;
+            airline.addFlight(new Flight("A" + i, origin, "BBB", 500, Money.dollars(100), "2030-01-01 10:00:00"));
+        }
+        Path archiveDir = Files.createTempDirectory("api-benchmark");
+        BookingApiServer api = new BookingApiServer(airline, new BookingMetrics(true), new BookingArchive(archiveDir), 0);
+        api.start();
+        try {
+            run(api.getPort(), connections, 2); // Warm-up
+            long[] counts = run(api.getPort(), connections, seconds);
+            long total = Arrays.stream(counts).sum() + 2 * counts[counts.length - 1]; // A booking is 3 requests
+            System.out.printf("%d connections, %d s: %.0f requests/s (%s: %s)%n", connections, seconds,
+                    (double) total / seconds, String.join(", ", REQUESTS), Arrays.toString(counts));
+
+            int accepted = 0;
+            int refused = 0;
+            try (Client client = new Client(api.getPort())) {
+                for (int i = 0; i < 10_000; i++) {
+                    int status = client.send("POST /bookings?name=Flood&flight=A3");
+                    if (status == 201)
+                        accepted++;
+                    else if (status == 429)
+                        refused++;
+                }
+            }
+            System.out.printf("unpaid flood: %d accepted, %d refused, %d handles held%n", accepted, refused,
+                    api.getBookingCount());
+        } finally {
+            api.stop();
+        }
+        System.exit(0);
     }
 
-    public double getAmount() {
-        return amount;
+    // Requests completed per entry of REQUESTS
+    private static long[] run(int port, int connections, int seconds) throws Exception {
+        LongAdder[] counts = new LongAdder[REQUESTS.length];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            int connection = c;
+            Thread thread = new Thread(() -> {
+                try (Client client = new Client(port)) {
+                    for (int i = connection; System.nanoTime() < end; i++) {
+                        int kind = i % REQUESTS.length;
+                        if (kind == REQUESTS.length - 1) {
+                            client.expect(201, "POST /bookings?name=Traveller+" + i + "&flight=A" + (i % 200));
+                            String id = client.body.replaceAll(".*\"id\":\"([0-9a-f]+)\".*", "$1");
+                            // 409 when another connection took the same first free seat meanwhile
+                            int paid = client.send("POST /bookings/" + id + "/payment?method=card");
+                            if (paid != 200 && paid != 409)
+                                throw new IOException("Payment returned " + paid + ": " + client.body);
+                            client.expect(200, "DELETE /bookings/" + id);
+                        } else {
+                            client.expect(200, REQUESTS[kind]);
+                        }
+                        counts[kind].increment();
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long[] result = new long[counts.length];
+        for (int i = 0; i < counts.length; i++)
+            result[i] = counts[i].sum();
+        return result;
     }
 
-    public boolean processPayment() {
-        // Simulate payment processing
-        return true; // Always succeed for this demo
+    // Minimal keep-alive HTTP/1.1 client: fixed-length and chunked bodies only
+    static class Client implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        String body;
+
+        Client(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void expect(int status, String request) throws IOException {
+            int actual = send(request);
+            if (actual != status)
+                throw new IOException(request + " returned " + actual + ": " + body);
+        }
+
+        int send(String request) throws IOException {
+            out.write((request + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            int status = Integer.parseInt(line().split(" ")[1]);
+            int length = -1;
+            boolean chunked = false;
+            for (String header = line(); !header.isEmpty(); header = line()) {
+                String lower = header.toLowerCase();
+                if (lower.startsWith("content-length:"))
+                    length = Integer.parseInt(lower.substring(15).trim());
+                else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked"))
+                    chunked = true;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if (chunked) {
+                for (int chunk = Integer.parseInt(line().trim(), 16); chunk > 0; chunk = Integer.parseInt(line().trim(), 16)) {
+                    byte[] data = new byte[chunk];
+                    in.readFully(data);
+                    bytes.write(data);
+                    line();
+                }
+                line();
+            } else if (length > 0) {
+                byte[] data = new byte[length];
+                in.readFully(data);
+                bytes.write(data);
+            }
+            body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            return status;
+        }
+
+        private String line() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int b = in.read(); b != '\n'; b = in.read()) {
+                if (b == -1)
+                    throw new EOFException("Connection closed");
+                if (b != '\r')
+                    line.append((char) b);
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
     }
 }
 
 // GUI Class
 public class AirlineManagementSystemGUI extends JFrame {
+    private static final long MAIN_MILLIS = System.currentTimeMillis();
+
     private Airline airline;
-    private DefaultTableModel flightsTableModel, passengersTableModel;
+    // The models exist from the start, so bookings and generated flights reach them before their panels are built
+    private DefaultTableModel flightsTableModel = new DefaultTableModel(
+            new String[] { "Flight Number", "Origin", "Destination", "Seats", "Price", "Date & Time", "Status" }, 0);
+    private DefaultTableModel passengersTableModel = new DefaultTableModel(
+            new String[] { "Name", "Flight", "Seat", "Services", "Service Cost" }, 0);
     private JPanel contentPanel;
+    private Map<String, Supplier<JPanel>> panelFactories = new HashMap<>(); // Panels not built yet, by name
+    private Map<String, Long> startupMillis = new ConcurrentHashMap<>(); // Startup phase -> ms since launch
+    private boolean training = Boolean.getBoolean("startup.training");
     private JComboBox<String> flightSelectionCombo;
     private Passenger currentPassenger;
     private Flight currentFlight;
+    private BookingMetrics metrics;
+    private FleetGenerator fleetGenerator;
+    private BackgroundTasks tasks;
+    private SwingWorker<?, ?> passengerSearch; // The latest type-ahead search, cancelled by the next keystroke
+    private Map<String, Integer> flightRows = new HashMap<>(); // Flight number -> row in flightsTableModel
+    private Map<String, JCheckBox> serviceCheckBoxes = new LinkedHashMap<>(); // Service name -> its check box
+    private JLabel totalPassengersLabel;
+    private JLabel netRevenueLabel;
+    private BookingArchive archive;
 
     // User Credentials Storage
     private Map<String, String> userCredentials;
 
     public AirlineManagementSystemGUI() {
-        airline = new Airline("SkyHigh Airlines");
+        airline = new Airline("SkyHigh Airlines", RevenueLedger.open()); // The journal loads after the first frame
+        metrics = new BookingMetrics(Boolean.parseBoolean(System.getProperty("metrics.enabled", "true")));
+        metrics.registerCollector(this::appendStartupMetrics);
+        ChangeFeed changeFeed = ChangeFeed.open();
+        if (changeFeed != null) {
+            airline.setChangeFeed(changeFeed);
+            metrics.registerCollector(changeFeed::appendPrometheus);
+        }
+        fleetGenerator = new FleetGenerator(Long.getLong("fleet.seed", System.nanoTime()));
         userCredentials = new HashMap<>(); // Initialize user credentials storage
+        tasks = new BackgroundTasks(this);
+        archive = new BookingArchive(Paths.get(System.getProperty("archive.dir", "archive")));
         setupUI();
-
-        JPanel loginPanel = createLoginPanel();
-        contentPanel.add(loginPanel, "Login");
-
         showPanel("Login");
+
+        addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowOpened(java.awt.event.WindowEvent e) {
+                startupPhase("first_frame");
+                // Runs once the events queued with the first frame (its paint) have been handled
+                SwingUtilities.invokeLater(() -> {
+                    startupPhase("interactive");
+                    loadState();
+                });
+            }
+        });
     }
 
+    // Builds the panel on first use; only the login panel is needed for the first frame
     private void showPanel(String panelName) {
+        Supplier<JPanel> factory = panelFactories.remove(panelName);
+        if (factory != null) {
+            contentPanel.add(factory.get(), panelName);
+        }
         CardLayout cl = (CardLayout) contentPanel.getLayout();
         cl.show(contentPanel, panelName);
     }
 
+    // Saved state is loaded in the background so it never delays the first frame
+    private void loadState() {
+        tasks.<Void, Void>submit("Loading saved state", progress -> {
+            airline.getLedger().load();
+            return null;
+        }, null, done -> {
+            startupPhase("state_loaded");
+            updateStats();
+            if (training) {
+                // A training run (see main) also builds every panel, so their classes end up in the archive
+                new ArrayList<>(panelFactories.keySet()).forEach(this::showPanel);
+                System.exit(0);
+            }
+        }, false);
+    }
+
+    // Milliseconds since the JVM was started, or since main when the start time is unknown
+    private void startupPhase(String phase) {
+        long now = System.currentTimeMillis();
+        long launch = ProcessHandle.current().info().startInstant().map(Instant::toEpochMilli).orElse(MAIN_MILLIS);
+        startupMillis.put(phase, now - launch);
+    }
+
+    private void appendStartupMetrics(StringBuilder sb) {
+        sb.append("# HELP airline_startup_seconds Time from launch to each startup phase of the GUI\n");
+        sb.append("# TYPE airline_startup_seconds gauge\n");
+        for (Map.Entry<String, Long> phase : startupMillis.entrySet()) {
+            sb.append("airline_startup_seconds{phase=\"").append(phase.getKey()).append("\"} ")
+                    .append(phase.getValue() / 1e3).append('\n');
+        }
+    }
+
+    private void removePassengerRow(String name, String flightNumber, int seat) {
+        for (int row = passengersTableModel.getRowCount() - 1; row >= 0; row--) {
+            if (name.equals(passengersTableModel.getValueAt(row, 0))
+                    && flightNumber.equals(passengersTableModel.getValueAt(row, 1))
+                    && Integer.valueOf(seat).equals(passengersTableModel.getValueAt(row, 2))) {
+                passengersTableModel.removeRow(row);
+                return;
+            }
+        }
+    }
+
     private void cancelBookingAction(JTable passengersTable) {
         int selectedRow = passengersTable.getSelectedRow();
 
@@ -279,6 +5402,7 @@ public class AirlineManagementSystemGUI extends JFrame {
             JOptionPane.showMessageDialog(this, "Please select a passenger to cancel their booking.");
             return;
         }
+        selectedRow = passengersTable.convertRowIndexToModel(selectedRow); // The table may be filtered
 
         // Retrieve passenger and flight details
         String passengerName = (String) passengersTableModel.getValueAt(selectedRow, 0);
@@ -286,58 +5410,121 @@ public class AirlineManagementSystemGUI extends JFrame {
         int seatNumber = (int) passengersTableModel.getValueAt(selectedRow, 2) - 1; // Adjust for 0-indexing
 
         // Find the flight
-        Flight flight = airline.getFlights().stream()
-                .filter(f -> f.getFlightNumber().equals(flightNumber))
-                .findFirst()
-                .orElse(null);
+        Flight flight = airline.findFlight(flightNumber);
 
         if (flight != null) {
-            // Remove passenger from flight and update seat availability
-            Passenger passengerToRemove = flight.getPassengers().stream()
-                    .filter(p -> p.getName().equals(passengerName))
-                    .findFirst()
-                    .orElse(null);
-
-            if (passengerToRemove != null) {
-                flight.getPassengers().remove(passengerToRemove);
-                flight.getSeatAvailability()[seatNumber] = false; // Mark seat as available
-                flight.setAvailableSeats(flight.getAvailableSeats() + 1);
-
-                // Update flights table
-                for (int i = 0; i < flightsTableModel.getRowCount(); i++) {
-                    if (flightsTableModel.getValueAt(i, 0).equals(flightNumber)) {
-                        flightsTableModel.setValueAt(flight.getAvailableSeats(), i, 3);
-                        break;
-                    }
-                }
-
-                // Remove passenger from passengers table
-                passengersTableModel.removeRow(selectedRow);
+            // The passenger sitting in the selected seat, as long as the name still matches
+            Passenger passengerToRemove = flight.getPassengerAt(seatNumber);
+            if (passengerToRemove != null && !passengerToRemove.getName().equals(passengerName)) {
+                passengerToRemove = null;
+            }
 
-                JOptionPane.showMessageDialog(this, "Booking successfully canceled.");
-                refreshDashboard();
-            } else {
+            if (passengerToRemove == null) {
                 JOptionPane.showMessageDialog(this, "Passenger not found.");
+                return;
             }
+            Passenger passenger = passengerToRemove;
+            Booking booking = airline.findBooking(passenger);
+            long refund = booking == null ? 0 : booking.getPaid();
+            long cancelStart = metrics.start();
+            // Cancelling writes the refund to the ledger journal, so it runs off the EDT, to the end
+            tasks.<Boolean, Void>submit("Cancelling " + passengerName,
+                    progress -> airline.cancelBooking(flight, passenger, seatNumber), null, cancelled -> {
+                        if (!cancelled) {
+                            JOptionPane.showMessageDialog(this, "Passenger not found.");
+                            return;
+                        }
+                        // Update flights table
+                        updateFlightRow(flight);
+
+                        // Remove passenger from passengers table; rows may have moved while the task ran
+                        removePassengerRow(passengerName, flightNumber, seatNumber + 1);
+                        metrics.record(Stage.CANCEL, cancelStart);
+                        metrics.bookingCancelled(flightNumber, seatNumber);
+
+                        JOptionPane.showMessageDialog(this, refund > 0
+                                ? "Booking successfully canceled. Refunded " + Money.format(refund) + "."
+                                : "Booking successfully canceled.");
+                        refreshDashboard();
+                    }, false);
         } else {
             JOptionPane.showMessageDialog(this, "Flight not found.");
         }
     }
 
     private void refreshDashboard() {
-        // Remove the old dashboard panel
-        contentPanel.remove(contentPanel.getComponent(0));
+        long start = metrics.start();
+
+        // Show the dashboard (built with current values on first use), updating its statistics in place
+        showPanel("Dashboard");
+        updateStats();
+        metrics.record(Stage.DASHBOARD_REFRESH, start);
+    }
 
-        // Recreate the dashboard panel
-        JPanel dashboardPanel = createDashboardPanel();
-        contentPanel.add(dashboardPanel, "Dashboard");
+    private void updateStats() {
+        if (totalPassengersLabel == null)
+            return; // Dashboard not built yet
+        totalPassengersLabel.setText(statText("Total Passengers", String.valueOf(airline.getTotalPassengers())));
+        netRevenueLabel.setText(statText("Net Revenue", netRevenueText()));
+    }
 
-        // Force the content panel to refresh and show the updated dashboard
-        contentPanel.revalidate();
-        contentPanel.repaint();
+    // The ledger loads after the first frame (loadState); until it has, show a placeholder instead of
+    // waiting for it on the EDT
+    private String netRevenueText() {
+        RevenueLedger ledger = airline.getLedger();
+        return ledger.isLoaded() ? Money.format(ledger.getTotals().getNet()) : "Loading...";
+    }
 
-        // Show the updated dashboard
-        showPanel("Dashboard");
+    // Removes rows of flights that are no longer live (archived) from both tables, one table event each
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void dropArchivedRows() {
+        Vector<Vector> flightData = new Vector<>();
+        flightRows.clear();
+        for (Vector row : flightsTableModel.getDataVector()) {
+            if (airline.findFlight((String) row.get(0)) != null) {
+                flightRows.put((String) row.get(0), flightData.size());
+                flightData.add(row);
+            }
+        }
+        flightsTableModel.setDataVector(flightData, columnNames(flightsTableModel));
+
+        Vector<Vector> passengerData = new Vector<>();
+        for (Vector row : passengersTableModel.getDataVector()) {
+            if (airline.findFlight((String) row.get(1)) != null)
+                passengerData.add(row);
+        }
+        passengersTableModel.setDataVector(passengerData, columnNames(passengersTableModel));
+
+        updateFlightSelectionDropdown();
+        updateStats();
+    }
+
+    private static Vector<String> columnNames(DefaultTableModel model) {
+        Vector<String> names = new Vector<>();
+        for (int i = 0; i < model.getColumnCount(); i++)
+            names.add(model.getColumnName(i));
+        return names;
+    }
+
+    private void updateFlightRow(Flight flight) {
+        Integer row = flightRows.get(flight.getFlightNumber());
+        if (row != null) {
+            flightsTableModel.setValueAt(flight.getAvailableSeats(), row, 3);
+        }
+    }
+
+    // Appends a batch of rows with a single table event
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void addFlightRows(List<Object[]> rows) {
+        if (rows.isEmpty())
+            return;
+        int first = flightsTableModel.getRowCount();
+        Vector<Vector> data = flightsTableModel.getDataVector();
+        for (Object[] row : rows) {
+            flightRows.put((String) row[0], data.size());
+            data.add(new Vector<>(Arrays.asList(row)));
+        }
+        flightsTableModel.fireTableRowsInserted(first, first + rows.size() - 1);
     }
 
     private void setupUI() {
@@ -371,26 +5558,20 @@ public class AirlineManagementSystemGUI extends JFrame {
         contentPanel = new JPanel(new CardLayout());
         contentPanel.setBackground(Color.WHITE);
         add(contentPanel, BorderLayout.CENTER);
+        add(tasks.getStatusBar(), BorderLayout.SOUTH);
 
-        JPanel dashboardPanel = createDashboardPanel();
-        JPanel flightsPanel = createFlightPanel();
-        JPanel passengersPanel = createPassengerPanel();
-        JPanel servicesPanel = createServicesPanel();
-        JPanel signUpPanel = createSignUpPanel(); // Create sign-up panel
-
-        contentPanel.add(dashboardPanel, "Dashboard");
-        contentPanel.add(flightsPanel, "Flights");
-        contentPanel.add(passengersPanel, "Passengers");
-        contentPanel.add(servicesPanel, "Services");
-        contentPanel.add(signUpPanel, "Sign Up"); // Add sign-up panel to content
+        panelFactories.put("Login", this::createLoginPanel);
+        panelFactories.put("Dashboard", this::createDashboardPanel);
+        panelFactories.put("Flights", this::createFlightPanel);
+        panelFactories.put("Passengers", this::createPassengerPanel);
+        panelFactories.put("Services", this::createServicesPanel);
+        panelFactories.put("Sign Up", this::createSignUpPanel);
 
         dashboardButton.addActionListener(e -> showPanel("Dashboard"));
         flightsButton.addActionListener(e -> showPanel("Flights"));
         passengersButton.addActionListener(e -> showPanel("Passengers"));
         servicesButton.addActionListener(e -> showPanel("Services"));
         exitButton.addActionListener(e -> System.exit(0));
-
-        showPanel("Dashboard");
     }
 
     private JPanel createLoginPanel() {
@@ -529,11 +5710,13 @@ public class AirlineManagementSystemGUI extends JFrame {
         panel.setBackground(new Color(240, 243, 250));
 
         // Statistics Panel
-        JPanel statsPanel = new JPanel(new GridLayout(1, 1, 20, 20));
+        JPanel statsPanel = new JPanel(new GridLayout(1, 2, 20, 20));
         statsPanel.setBackground(new Color(240, 243, 250));
 
-        JLabel totalPassengersLabel = createStatLabel("Total Passengers", String.valueOf(airline.getTotalPassengers()));
+        totalPassengersLabel = createStatLabel("Total Passengers", String.valueOf(airline.getTotalPassengers()));
         statsPanel.add(totalPassengersLabel);
+        netRevenueLabel = createStatLabel("Net Revenue", netRevenueText());
+        statsPanel.add(netRevenueLabel);
 
         panel.add(statsPanel, BorderLayout.NORTH);
 
@@ -556,20 +5739,19 @@ public class AirlineManagementSystemGUI extends JFrame {
 
     private JPanel createFlightPanel() {
         JPanel flightsPanel = new JPanel(new BorderLayout());
-        flightsTableModel = new DefaultTableModel(
-                new String[] { "Flight Number", "Origin", "Destination", "Seats", "Price", "Date & Time", "Status" },
-                0);
         JTable flightsTable = new JTable(flightsTableModel);
         flightsPanel.add(new JScrollPane(flightsTable), BorderLayout.CENTER);
 
-        JPanel formPanel = new JPanel(new GridLayout(4, 2, 10, 10));
+        JPanel formPanel = new JPanel(new GridLayout(6, 2, 10, 10));
         formPanel.setBorder(BorderFactory.createTitledBorder("Add Flights"));
         formPanel.setBackground(new Color(245, 250, 255));
 
         JTextField originField = new JTextField();
         JTextField destinationField = new JTextField();
         JTextField dateTimeField = new JTextField("yyyy-MM-dd HH:mm:ss");
+        JSpinner countSpinner = new JSpinner(new SpinnerNumberModel(5, 1, 1_000_000, 1));
         JButton generateFlightsButton = new JButton("Generate Flights");
+        JButton archiveButton = new JButton("Archive Departed Flights");
 
         formPanel.add(new JLabel("Origin:"));
         formPanel.add(originField);
@@ -577,11 +5759,29 @@ public class AirlineManagementSystemGUI extends JFrame {
         formPanel.add(destinationField);
         formPanel.add(new JLabel("Date & Time:"));
         formPanel.add(dateTimeField);
+        formPanel.add(new JLabel("Number of Flights:"));
+        formPanel.add(countSpinner);
         formPanel.add(new JLabel(""));
         formPanel.add(generateFlightsButton);
+        formPanel.add(new JLabel(""));
+        formPanel.add(archiveButton);
 
         flightsPanel.add(formPanel, BorderLayout.SOUTH);
 
+        archiveButton.addActionListener(e -> {
+            archiveButton.setEnabled(false);
+            tasks.<Integer, Void>submit("Archiving departed flights",
+                    progress -> airline.archiveDeparted(LocalDateTime.now(), archive), null, archived -> {
+                        dropArchivedRows();
+                        JOptionPane.showMessageDialog(this, archived + " departed flights archived.");
+                    }).addPropertyChangeListener(event -> {
+                        if ("state".equals(event.getPropertyName())
+                                && event.getNewValue() == SwingWorker.StateValue.DONE) {
+                            archiveButton.setEnabled(true);
+                        }
+                    });
+        });
+
         generateFlightsButton.addActionListener(e -> {
             String origin = originField.getText();
             String destination = destinationField.getText();
@@ -601,22 +5801,31 @@ public class AirlineManagementSystemGUI extends JFrame {
                 return;
             }
 
-            Random random = new Random();
-            for (int i = 0; i < 5; i++) {
-                String flightNumber = "F" + (1000 + random.nextInt(9000));
-                int seats = 50 + random.nextInt(150);
-                double price = 50 + random.nextInt(450);
-                Flight flight = new Flight(flightNumber, origin, destination, seats, price, dateTime);
-                airline.addFlight(flight);
-                flightsTableModel.addRow(
-                        new Object[] { flightNumber, origin, destination, seats, "$" + price, dateTime, "Scheduled" });
-            }
-
-            originField.setText("");
-            destinationField.setText("");
-            dateTimeField.setText("yyyy-MM-dd HH:mm:ss");
-            updateFlightSelectionDropdown();
-            JOptionPane.showMessageDialog(this, "5 flights generated successfully!");
+            int count = (Integer) countSpinner.getValue();
+            long first = airline.reserveFlightNumbers(count);
+            generateFlightsButton.setEnabled(false);
+            tasks.<Integer, Object[]>submit("Generating " + count + " flights", progress -> {
+                int generated = 0;
+                while (generated < count && !progress.isCancelled()) {
+                    Flight flight = fleetGenerator.flight(first + generated, origin, destination, dateTime);
+                    airline.addFlight(flight);
+                    progress.emit(new Object[] { flight.getFlightNumber(), origin, destination,
+                            flight.getTotalSeats(), Money.format(flight.getPrice()), dateTime, "Scheduled" });
+                    progress.progress(++generated, count);
+                }
+                return generated;
+            }, this::addFlightRows, generated -> {
+                originField.setText("");
+                destinationField.setText("");
+                dateTimeField.setText("yyyy-MM-dd HH:mm:ss");
+                JOptionPane.showMessageDialog(this, generated + " flights generated successfully!");
+            }).addPropertyChangeListener(event -> {
+                // Also on cancel or failure: flights generated so far stay bookable
+                if ("state".equals(event.getPropertyName()) && event.getNewValue() == SwingWorker.StateValue.DONE) {
+                    generateFlightsButton.setEnabled(true);
+                    updateFlightSelectionDropdown();
+                }
+            });
         });
 
         return flightsPanel;
@@ -624,11 +5833,39 @@ public class AirlineManagementSystemGUI extends JFrame {
 
     private JPanel createPassengerPanel() {
         JPanel passengersPanel = new JPanel(new BorderLayout());
-        passengersTableModel = new DefaultTableModel(
-                new String[] { "Name", "Flight", "Seat", "Services", "Service Cost" }, 0);
         JTable passengersTable = new JTable(passengersTableModel);
         passengersPanel.add(new JScrollPane(passengersTable), BorderLayout.CENTER);
 
+        // Type-ahead search backed by the airline's passenger index
+        TableRowSorter<DefaultTableModel> sorter = new TableRowSorter<>(passengersTableModel);
+        passengersTable.setRowSorter(sorter);
+        JTextField searchField = new JTextField();
+        JPanel searchPanel = new JPanel(new BorderLayout(10, 10));
+        searchPanel.setBorder(new EmptyBorder(5, 5, 5, 5));
+        searchPanel.add(new JLabel("Search:"), BorderLayout.WEST);
+        searchPanel.add(searchField, BorderLayout.CENTER);
+        passengersPanel.add(searchPanel, BorderLayout.NORTH);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                filterPassengers(sorter, searchField.getText());
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                filterPassengers(sorter, searchField.getText());
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                filterPassengers(sorter, searchField.getText());
+            }
+        });
+        // Bookings and cancellations change the index too: the active filter is re-run once they settle
+        Timer refilter = new Timer(200, e -> filterPassengers(sorter, searchField.getText()));
+        refilter.setRepeats(false);
+        passengersTableModel.addTableModelListener(e -> {
+            if (!searchField.getText().trim().isEmpty())
+                refilter.restart();
+        });
+
         JPanel formPanel = new JPanel(new GridLayout(6, 2, 10, 10)); // Adjusted to 6 rows for the new cancel button
         formPanel.setBorder(BorderFactory.createTitledBorder("Add Passenger"));
         formPanel.setBackground(new Color(245, 250, 255));
@@ -637,6 +5874,7 @@ public class AirlineManagementSystemGUI extends JFrame {
         flightSelectionCombo = new JComboBox<>();
         JButton selectServicesButton = new JButton("Select Services");
         JButton cancelBookingButton = new JButton("Cancel Booking"); // Create cancel booking button
+        JButton groupBookingButton = new JButton("Group Booking");
 
         cancelBookingButton.setBackground(new Color(255, 80, 80)); // Set styling
         cancelBookingButton.setForeground(Color.BLACK);
@@ -649,6 +5887,8 @@ public class AirlineManagementSystemGUI extends JFrame {
         formPanel.add(selectServicesButton);
         formPanel.add(new JLabel("")); // Empty label for spacing
         formPanel.add(cancelBookingButton); // Add the cancel button
+        formPanel.add(new JLabel(""));
+        formPanel.add(groupBookingButton);
 
         passengersPanel.add(formPanel, BorderLayout.SOUTH);
 
@@ -661,10 +5901,7 @@ public class AirlineManagementSystemGUI extends JFrame {
                 return;
             }
 
-            Flight flight = airline.getFlights().stream()
-                    .filter(f -> f.getFlightNumber().equals(flightNumber))
-                    .findFirst()
-                    .orElse(null);
+            Flight flight = airline.findFlight(flightNumber);
 
             if (flight == null) {
                 JOptionPane.showMessageDialog(this, "Flight not found!");
@@ -679,13 +5916,61 @@ public class AirlineManagementSystemGUI extends JFrame {
             currentPassenger = new Passenger(name);
             currentFlight = flight;
             showPanel("Services");
+            updateServiceAvailability();
         });
 
         cancelBookingButton.addActionListener(e -> cancelBookingAction(passengersTable)); // Add action listener
+        groupBookingButton.addActionListener(e -> groupBookingAction());
+        updateFlightSelectionDropdown();
 
         return passengersPanel;
     }
 
+    // The index is searched off the EDT; a keystroke, or a change to the table, cancels the search still
+    // running for the previous one, so only the latest matches are ever applied. Every matching row is shown.
+    private void filterPassengers(TableRowSorter<DefaultTableModel> sorter, String query) {
+        if (passengerSearch != null)
+            passengerSearch.cancel(true);
+        if (query.trim().isEmpty()) {
+            passengerSearch = null;
+            sorter.setRowFilter(null);
+            return;
+        }
+        passengerSearch = tasks.<Set<String>, Void>submit("Searching passengers", progress -> {
+            // Rows are identified by flight and seat, which the index knows for every booking
+            Set<String> matches = new HashSet<>();
+            for (Booking booking : airline.filterPassengers(query, progress::isCancelled)) {
+                matches.add(booking.getFlight().getFlightNumber() + "#" + (booking.getSeat() + 1));
+            }
+            return matches;
+        }, null, matches -> sorter.setRowFilter(new RowFilter<DefaultTableModel, Integer>() {
+            @Override
+            public boolean include(Entry<? extends DefaultTableModel, ? extends Integer> entry) {
+                return matches.contains(entry.getStringValue(1) + "#" + entry.getStringValue(2));
+            }
+        }));
+    }
+
+    // Shows what is left of each service on the selected flight; sold-out services cannot be selected
+    private void updateServiceAvailability() {
+        if (currentFlight == null)
+            return;
+        ServiceInventory inventory = currentFlight.getServiceInventory();
+        for (Map.Entry<String, JCheckBox> entry : serviceCheckBoxes.entrySet()) {
+            JCheckBox checkBox = entry.getValue();
+            int remaining = inventory.getRemaining(entry.getKey());
+            String label = (String) checkBox.getClientProperty("label");
+            if (remaining == 0) {
+                checkBox.setSelected(false);
+                checkBox.setEnabled(false);
+                checkBox.setText(label + " - sold out");
+            } else {
+                checkBox.setEnabled(true);
+                checkBox.setText(remaining == Integer.MAX_VALUE ? label : label + " - " + remaining + " left");
+            }
+        }
+    }
+
     private JPanel createServicesPanel() {
         JPanel servicesPanel = new JPanel(new GridBagLayout());
         servicesPanel.setBorder(new EmptyBorder(20, 20, 20, 20));
@@ -723,6 +6008,13 @@ public class AirlineManagementSystemGUI extends JFrame {
         baggagePanel.setBorder(BorderFactory.createTitledBorder("Extra Baggage"));
         baggagePanel.add(baggageCheckBox);
 
+        serviceCheckBoxes.put("Vegetarian Meal", vegetarianMeal);
+        serviceCheckBoxes.put("Non-Vegetarian Meal", nonVegMeal);
+        serviceCheckBoxes.put("Kids Meal", kidsMeal);
+        serviceCheckBoxes.put("Wi-Fi", wifiCheckBox);
+        serviceCheckBoxes.put("Extra Baggage", baggageCheckBox);
+        serviceCheckBoxes.values().forEach(checkBox -> checkBox.putClientProperty("label", checkBox.getText()));
+
         // Add Payment and Confirm Button
         JButton addPaymentButton = new JButton("Proceed to Payment");
         addPaymentButton.setFont(new Font("Arial", Font.BOLD, 14));
@@ -761,34 +6053,46 @@ public class AirlineManagementSystemGUI extends JFrame {
                 return;
             }
 
+            long servicesStart = metrics.start();
+
             // Calculate fresh service costs based on selected checkboxes
-            double serviceCost = 0.0;
+            long serviceCost = 0;
             if (vegetarianMeal.isSelected())
-                serviceCost += 20;
+                serviceCost += Money.dollars(20);
             if (nonVegMeal.isSelected())
-                serviceCost += 25;
+                serviceCost += Money.dollars(25);
             if (kidsMeal.isSelected())
-                serviceCost += 15;
+                serviceCost += Money.dollars(15);
             if (wifiCheckBox.isSelected())
-                serviceCost += 15;
+                serviceCost += Money.dollars(15);
             if (baggageCheckBox.isSelected())
-                serviceCost += 30;
+                serviceCost += Money.dollars(30);
 
             // Add selected services to the passenger
             currentPassenger.getServices().clear(); // Reset services to avoid duplicates
             if (vegetarianMeal.isSelected())
-                currentPassenger.addService(new Meal("Vegetarian", 20));
+                currentPassenger.addService(new Meal("Vegetarian", Money.dollars(20)));
             if (nonVegMeal.isSelected())
-                currentPassenger.addService(new Meal("Non-Vegetarian", 25));
+                currentPassenger.addService(new Meal("Non-Vegetarian", Money.dollars(25)));
             if (kidsMeal.isSelected())
-                currentPassenger.addService(new Meal("Kids", 15));
+                currentPassenger.addService(new Meal("Kids", Money.dollars(15)));
             if (wifiCheckBox.isSelected())
                 currentPassenger.addService(new WiFi());
             if (baggageCheckBox.isSelected())
                 currentPassenger.addService(new ExtraBaggage());
 
+            // Other agents may have sold the last ones since the panel was shown
+            for (Service service : currentPassenger.getServices()) {
+                if (currentFlight.getServiceInventory().isSoldOut(service.getName())) {
+                    JOptionPane.showMessageDialog(this, service.getName() + " is sold out on this flight.");
+                    updateServiceAvailability();
+                    return;
+                }
+            }
+
             // Calculate total cost
-            double totalCost = currentFlight.getPrice() + serviceCost;
+            long totalCost = currentFlight.getPrice() + serviceCost;
+            metrics.record(Stage.SERVICES, servicesStart);
 
             // Show payment dialog with the calculated total cost
             showPaymentDialog(totalCost);
@@ -797,7 +6101,110 @@ public class AirlineManagementSystemGUI extends JFrame {
         return servicesPanel;
     }
 
-    private void showPaymentDialog(double totalCost) {
+    // Books a whole group on the selected flight in one step: one row per passenger with their own services,
+    // a single payment and adjacent seats where possible
+    private void groupBookingAction() {
+        String flightNumber = (String) flightSelectionCombo.getSelectedItem();
+        Flight flight = airline.findFlight(flightNumber);
+        if (flight == null) {
+            JOptionPane.showMessageDialog(this, "No flights available. Please add flights first.");
+            return;
+        }
+
+        // A name column followed by one checkbox column per service, in the order of serviceCodes
+        String[] serviceCodes = { "vegetarian", "non-vegetarian", "kids", "wifi", "baggage" };
+        DefaultTableModel groupModel = new DefaultTableModel(new Object[] { "Passenger Name",
+                "Vegetarian Meal ($20)", "Non-Veg Meal ($25)", "Kids Meal ($15)", "Wi-Fi ($15)",
+                "Extra Baggage ($30)" }, 0) {
+            @Override
+            public Class<?> getColumnClass(int column) {
+                return column == 0 ? String.class : Boolean.class;
+            }
+        };
+        Runnable addPassengerRow = () -> groupModel.addRow(new Object[] { "", false, false, false, false, false });
+        for (int i = 0; i < 4; i++)
+            addPassengerRow.run();
+        JTable groupTable = new JTable(groupModel);
+        groupTable.setPreferredScrollableViewportSize(new Dimension(640, 160));
+        JButton addPassengerButton = new JButton("Add Passenger");
+        addPassengerButton.addActionListener(e -> addPassengerRow.run());
+        JComboBox<String> paymentMethodCombo = new JComboBox<>(
+                new String[] { "Credit Card", "PayPal", "Bank Transfer" });
+
+        JPanel groupPanel = new JPanel(new BorderLayout(10, 10));
+        groupPanel.add(new JLabel("Passengers for " + flightNumber + " and the services each one wants:"),
+                BorderLayout.NORTH);
+        groupPanel.add(new JScrollPane(groupTable), BorderLayout.CENTER);
+        JPanel optionsPanel = new JPanel(new GridLayout(1, 2, 5, 5));
+        optionsPanel.add(addPassengerButton);
+        optionsPanel.add(paymentMethodCombo);
+        groupPanel.add(optionsPanel, BorderLayout.SOUTH);
+
+        if (JOptionPane.showConfirmDialog(this, groupPanel, "Group Booking",
+                JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        if (groupTable.isEditing())
+            groupTable.getCellEditor().stopCellEditing(); // Keep a name still being typed when OK was pressed
+
+        List<Passenger> group = new ArrayList<>();
+        for (int row = 0; row < groupModel.getRowCount(); row++) {
+            Object value = groupModel.getValueAt(row, 0);
+            String name = value == null ? "" : value.toString().trim();
+            if (name.isEmpty())
+                continue;
+            Passenger passenger = new Passenger(name);
+            for (int i = 0; i < serviceCodes.length; i++) {
+                if (Boolean.TRUE.equals(groupModel.getValueAt(row, i + 1)))
+                    passenger.addService(BookingApiServer.createService(serviceCodes[i]));
+            }
+            group.add(passenger);
+        }
+        if (group.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Please enter at least one passenger name.");
+            return;
+        }
+
+        long bookingStart = metrics.start();
+        String paymentMethod = (String) paymentMethodCombo.getSelectedItem();
+        // The booking (and its payment) runs off the EDT, and cannot be cancelled halfway
+        tasks.<int[], Void>submit("Booking " + group.size() + " passengers",
+                progress -> airline.bookGroup(flight, group, paymentMethod), null,
+                seats -> groupBooked(flight, group, seats, bookingStart), false);
+    }
+
+    // Back on the EDT once bookGroup has returned; seats is null when nothing was booked
+    private void groupBooked(Flight flight, List<Passenger> group, int[] seats, long bookingStart) {
+        String flightNumber = flight.getFlightNumber();
+        if (seats == null) {
+            metrics.bookingFailed();
+            JOptionPane.showMessageDialog(this, "Could not book " + group.size() + " seats on " + flightNumber
+                    + " (" + flight.getAvailableSeats() + " available, or the selected services are sold out)."
+                    + " Nothing was booked.");
+            return;
+        }
+
+        for (int i = 0; i < group.size(); i++) {
+            Passenger passenger = group.get(i);
+            passengersTableModel.addRow(new Object[] {
+                    passenger.getName(),
+                    flightNumber,
+                    seats[i] + 1,
+                    passenger.getServices().toString(),
+                    Money.format(passenger.getServiceCost())
+            });
+            metrics.bookingCompleted(flightNumber, seats[i], flight.getPrice() + passenger.getServiceCost());
+        }
+        updateFlightRow(flight);
+        metrics.record(Stage.BOOKING, bookingStart);
+
+        JOptionPane.showMessageDialog(this, group.size() + " passengers booked. Total Cost: "
+                + Money.format(Airline.groupCost(flight, group)));
+        refreshDashboard();
+        showPanel("Passengers");
+    }
+
+    private void showPaymentDialog(long totalCost) {
         JDialog paymentDialog = new JDialog(this, "Payment", true);
         paymentDialog.setSize(400, 300);
         paymentDialog.setLocationRelativeTo(this);
@@ -807,7 +6214,7 @@ public class AirlineManagementSystemGUI extends JFrame {
         JComboBox<String> paymentMethodCombo = new JComboBox<>(
                 new String[] { "Credit Card", "PayPal", "Bank Transfer" });
 
-        JLabel totalCostLabel = new JLabel("Total Cost: $" + totalCost); // Display correct cost dynamically
+        JLabel totalCostLabel = new JLabel("Total Cost: " + Money.format(totalCost)); // Display correct cost dynamically
         JButton confirmPaymentButton = new JButton("Confirm Payment");
 
         paymentDialog.add(paymentMethodLabel);
@@ -822,46 +6229,86 @@ public class AirlineManagementSystemGUI extends JFrame {
                 return;
             }
 
+            long bookingStart = metrics.start();
             Payment payment = new Payment(selectedMethod, totalCost);
-            if (!payment.processPayment()) {
-                JOptionPane.showMessageDialog(this, "Payment failed! Try again.");
-                return;
-            }
+            confirmPaymentButton.setEnabled(false);
+            tasks.<Boolean, Void>submit("Processing payment", progress -> payment.processPayment(), null, paid -> {
+                metrics.record(Stage.PAYMENT, bookingStart);
+                confirmPaymentButton.setEnabled(true);
+                if (!paid) {
+                    metrics.paymentFailed();
+                    JOptionPane.showMessageDialog(this, "Payment failed! Try again.");
+                    return;
+                }
+                completeBooking(paymentDialog, totalCost, bookingStart);
+            });
+        });
 
-            // Show Seat Selection
-            int selectedSeat = showSeatSelectionDialog(currentFlight.getSeatAvailability());
-            if (selectedSeat == -1 || !currentFlight.bookSeat(currentPassenger, selectedSeat)) {
-                JOptionPane.showMessageDialog(this, "Failed to book seat!");
-                return;
-            }
+        paymentDialog.setVisible(true);
+    }
 
-            // Add Passenger to Passenger Table
-            passengersTableModel.addRow(new Object[] {
-                    currentPassenger.getName(),
-                    currentFlight.getFlightNumber(),
-                    selectedSeat + 1,
-                    currentPassenger.getServices().toString(),
-                    "$" + currentPassenger.getServiceCost()
+    // Seat selection and table updates after a successful payment, back on the EDT
+    private void completeBooking(JDialog paymentDialog, long totalCost, long bookingStart) {
+        if (currentPassenger == null || currentFlight == null) {
+            return;
+        }
 
-            });
+        // Show Seat Selection
+        long seatStart = metrics.start();
+        int selectedSeat = showSeatSelectionDialog(currentFlight.snapshotSeatAvailability());
+        metrics.record(Stage.SEAT_SELECTION, seatStart);
 
-            // Update Flight Seat Count in Flights Table
-            for (int i = 0; i < flightsTableModel.getRowCount(); i++) {
-                if (flightsTableModel.getValueAt(i, 0).equals(currentFlight.getFlightNumber())) {
-                    flightsTableModel.setValueAt(currentFlight.getAvailableSeats(), i, 3);
-                    break;
-                }
-            }
+        if (selectedSeat == -1) {
+            metrics.bookingFailed();
+            JOptionPane.showMessageDialog(this, "Failed to book seat! No seat was selected.");
+            return;
+        }
+
+        // Booking writes the ledger journal and may wait for the change feed, so it runs off the EDT, to the end
+        Passenger passenger = currentPassenger;
+        Flight flight = currentFlight;
+        long bookStart = metrics.start();
+        tasks.<Boolean, Void>submit("Booking seat " + (selectedSeat + 1),
+                progress -> airline.bookSeat(flight, passenger, selectedSeat, totalCost), null, booked -> {
+                    metrics.record(Stage.BOOK_SEAT, bookStart);
+                    if (!booked) {
+                        metrics.bookingFailed();
+                        JOptionPane.showMessageDialog(this, "Failed to book seat! The seat or a selected service is "
+                                + "no longer available.");
+                        return;
+                    }
+                    seatBooked(paymentDialog, flight, passenger, selectedSeat, totalCost, bookingStart);
+                }, false);
+    }
+
+    private void seatBooked(JDialog paymentDialog, Flight flight, Passenger passenger, int seat, long totalCost,
+            long bookingStart) {
+        long tableStart = metrics.start();
+
+        // Add Passenger to Passenger Table
+        passengersTableModel.addRow(new Object[] {
+                passenger.getName(),
+                flight.getFlightNumber(),
+                seat + 1,
+                passenger.getServices().toString(),
+                Money.format(passenger.getServiceCost())
 
-            // Reset
-            currentPassenger = null;
-            currentFlight = null;
-            paymentDialog.dispose();
-            showPanel("Passengers");
-            refreshDashboard();
         });
 
-        paymentDialog.setVisible(true);
+        // Update Flight Seat Count in Flights Table
+        updateFlightRow(flight);
+        metrics.record(Stage.TABLE_UPDATE, tableStart);
+        metrics.bookingCompleted(flight.getFlightNumber(), seat, totalCost);
+
+        // Reset
+        if (currentPassenger == passenger) {
+            currentPassenger = null;
+            currentFlight = null;
+        }
+        paymentDialog.dispose();
+        showPanel("Passengers");
+        refreshDashboard();
+        metrics.record(Stage.BOOKING, bookingStart);
     }
 
     private int showSeatSelectionDialog(boolean[] seatAvailability) {
@@ -950,14 +6397,22 @@ public class AirlineManagementSystemGUI extends JFrame {
         return selectedSeat[0];
     }
 
+    // The new model is built off the EDT and swapped in with one update
     private void updateFlightSelectionDropdown() {
-        flightSelectionCombo.removeAllItems();
-        airline.getFlights().forEach(flight -> flightSelectionCombo.addItem(flight.getFlightNumber()));
+        if (flightSelectionCombo == null)
+            return; // Loaded when the passengers panel is built
+        tasks.<DefaultComboBoxModel<String>, Void>submit("Loading flights", progress -> {
+            Vector<String> flightNumbers;
+            synchronized (airline.getFlights()) {
+                flightNumbers = new Vector<>(airline.getFlights().size());
+                airline.getFlights().forEach(flight -> flightNumbers.add(flight.getFlightNumber()));
+            }
+            return new DefaultComboBoxModel<>(flightNumbers);
+        }, null, flightSelectionCombo::setModel);
     }
 
     private JLabel createStatLabel(String title, String value) {
-        JLabel label = new JLabel("<html><div style='font-size:18px;font-weight:bold;'>" + title + "</div>" +
-                "<div style='font-size:24px;color:#007BFF;'>" + value + "</div></html>");
+        JLabel label = new JLabel(statText(title, value));
         label.setHorizontalAlignment(SwingConstants.CENTER);
         label.setBorder(BorderFactory.createLineBorder(new Color(200, 200, 200)));
         label.setBackground(Color.WHITE);
@@ -965,6 +6420,11 @@ public class AirlineManagementSystemGUI extends JFrame {
         return label;
     }
 
+    private static String statText(String title, String value) {
+        return "<html><div style='font-size:18px;font-weight:bold;'>" + title + "</div>" +
+                "<div style='font-size:24px;color:#007BFF;'>" + value + "</div></html>";
+    }
+
     private JButton createSidebarButton(String text) {
         JButton button = new JButton(text);
         button.setFont(new Font("Arial", Font.BOLD, 16));
@@ -987,9 +6447,87 @@ public class AirlineManagementSystemGUI extends JFrame {
         return button;
     }
 
-    public static void main(String[] args) {
+    private void startMetrics() {
+        if (!metrics.isEnabled())
+            return;
+        metrics.registerMBean();
+        String port = System.getProperty("metrics.port");
+        if (port != null) {
+            try {
+                metrics.startEndpoint(Integer.parseInt(port));
+            } catch (IOException | NumberFormatException ex) {
+                System.err.println("Could not start metrics endpoint on port " + port + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private void startApi() {
+        String port = System.getProperty("api.port");
+        if (port == null)
+            return;
+        try {
+            new BookingApiServer(airline, metrics, archive, Integer.parseInt(port)).start();
+        } catch (IOException | NumberFormatException ex) {
+            System.err.println("Could not start booking API on port " + port + ": " + ex.getMessage());
+        }
+    }
+
+    // --headless serves only the booking API (port from -Dapi.port, default 8080) without opening the window.
+    // -Dfleet.size=<n> pre-populates it with n generated flights and bookings (seed from -Dfleet.seed).
+    // Departed flights are moved to the archive (-Darchive.dir) every hour.
+    // -Dcdc.dir=<dir> publishes every flight and booking change to a change feed there (see ChangeFeed).
+    // Booking changes are rate limited per client and flight and queued fairly (-Dadmission.*, see AdmissionControl).
+    // Unpaid API bookings expire after -Dapi.booking.ttl.seconds (900) and are limited to
+    // -Dapi.booking.unpaid.max (50) per client.
+    //
+    // Startup is measured from JVM launch (first frame, interactive, state loaded; exported as
+    // airline_startup_seconds on the metrics endpoint). To start from a class-data-sharing archive (CDS needs
+    // the classes in a jar), record it once with a training run, which exits on its own after loading
+    // everything it normally would, then launch with it:
+    //   jar cfe airline.jar AirlineManagementSystemGUI *.class
+    //   java -XX:ArchiveClassesAtExit=airline.jsa -Dstartup.training=true -jar airline.jar [--headless]
+    //   java -XX:SharedArchiveFile=airline.jsa -jar airline.jar [--headless]
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            BookingMetrics metrics = new BookingMetrics(
+                    Boolean.parseBoolean(System.getProperty("metrics.enabled", "true")));
+            metrics.registerMBean();
+            Airline airline = new Airline("SkyHigh Airlines", RevenueLedger.open());
+            ChangeFeed changeFeed = ChangeFeed.open();
+            if (changeFeed != null) {
+                airline.setChangeFeed(changeFeed);
+                metrics.registerCollector(changeFeed::appendPrometheus);
+            }
+            long fleetSize = Long.getLong("fleet.size", 0);
+            if (fleetSize > 0) {
+                new FleetGenerator(Long.getLong("fleet.seed", 42)).populate(airline, fleetSize, true);
+            }
+            Thread ledgerLoader = new Thread(airline.getLedger()::load, "ledger-load"); // Ledger calls wait for it
+            ledgerLoader.setDaemon(true);
+            ledgerLoader.start();
+            BookingArchive archive = new BookingArchive(Paths.get(System.getProperty("archive.dir", "archive")));
+            BookingApiServer api = new BookingApiServer(airline, metrics, archive,
+                    Integer.parseInt(System.getProperty("api.port", "8080")));
+            api.start();
+            Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
+                try {
+                    airline.archiveDeparted(LocalDateTime.now(), archive);
+                } catch (IOException ex) {
+                    System.err.println("Archiving departed flights failed: " + ex.getMessage());
+                }
+            }, 0, 1, TimeUnit.HOURS);
+            System.out.println("Booking API listening on port " + api.getPort());
+            if (Boolean.getBoolean("startup.training")) {
+                airline.getLedger().load();
+                System.exit(0);
+            }
+            return;
+        }
+
         SwingUtilities.invokeLater(() -> {
             AirlineManagementSystemGUI gui = new AirlineManagementSystemGUI();
+            gui.startMetrics();
+            gui.startApi();
             gui.setVisible(true);
         });
     }